@@ -13,6 +13,14 @@ import java.io.*;
 // receive this TCPPacket, and call that connection's receivePacket()
 // method.
 //
+// each TCPStack has its own Demultiplexer, on its own UDP port, with
+// its own tables and port numbers.
+//
+// a segment that matches no connection is answered with a RST, so the
+// other end gives up at once instead of retrying for minutes. the
+// exception is a SYN for a port with a server on it (a ServerSocket or
+// TCPServerChannel) that is not in accept() just now: that SYN is
+// dropped, and the retransmitted one finds the next listener.
 //
 //
 // **** a unique connection is defined by 5 numbers: ****
@@ -52,29 +60,56 @@ class Demultiplexer extends Thread {
 
     // this number is for connecting requests, where each connection
     // should have a unique port number but nothing specific.
-    private static int nextAvailablePortNumber;
+    private int nextAvailablePortNumber;
 
     // port to listen for UDP datagrams
     private int portForUDP;
 
-    // Hashtable provides an easy way to identify unique connections.
-    // will be filled with StudentSocketImpl objects.
-    private Hashtable connectionTable;
+    // the stack this belongs to, for its trace and debug settings
+    private TCPStack stack;
+
+    // unwraps (and checks) what arrives, and sends our resets
+    private TCPWrapper wrapper;
+
+    // where resets go
+    private TCPRouteTable routes;
+
+    // the buffers datagrams are received into
+    private TCPSegmentPool segments;
+
+    // for leak detection, see TCPSegmentPool: a segment held this many
+    // milliseconds is reported, and when the last check was
+    static final long LEAK_AGE = 10000;
+    private long leaksChecked;
+
+    // connections, by remote address, local port and remote port. see
+    // Table: looking one up allocates nothing, as every segment received
+    // does it.
+    private Table<StudentSocketImpl> connectionTable;
 
     // need a second table for connections that are listening for a
-    // connect() attempt.
-    // will be filled with StudentSocketImpl objects.
-    private Hashtable listeningTable;
+    // connect() attempt, by local port.
+    private Table<StudentSocketImpl> listeningTable;
+
+    // ports a server accepts connections on, whether or not one is
+    // listening right now.
+    private Table<Boolean> serverTable;
 
 
-    // constructor, of course
-    Demultiplexer( int portNum ) {
-        super();
+    // constructor, of course. the stack's wrapper, routes and segment
+    // pool must be made already.
+    Demultiplexer( TCPStack stack ) {
+        super("Demultiplexer "+stack.udpPort);
         this.setDaemon(true);
         nextAvailablePortNumber = 12345; // as long as its a high port number
-        portForUDP = portNum; // will listen on this port number
-        connectionTable = new Hashtable();
-        listeningTable = new Hashtable();
+        portForUDP = stack.udpPort; // will listen on this port number
+        this.stack = stack;
+        this.wrapper = stack.wrapper;
+        this.routes = stack.routes;
+        this.segments = stack.segments;
+        connectionTable = new Table<StudentSocketImpl>();
+        listeningTable = new Table<StudentSocketImpl>();
+        serverTable = new Table<Boolean>();
     }
 
 
@@ -82,9 +117,12 @@ class Demultiplexer extends Thread {
     // packets, which will then be unwrapped and demultiplexed BEFORE
     // receiving the next packet.
     public void run() {
-        TCPPacket packet;
-        byte buf[] = new byte[TCPPacket.MAX_PACKET_SIZE+20];
-        DatagramPacket p;
+        // one packet and one datagram for everything received; each
+        // datagram lands in a segment of the pool, which is given back
+        // once the packet has been processed
+        TCPPacket packet = new TCPPacket();
+        DatagramPacket p = new DatagramPacket(new byte[0], 0);
+        TCPSegmentPool.Segment seg;
         DatagramSocket ds;
         try{
             ds = new DatagramSocket(portForUDP);
@@ -95,21 +133,27 @@ class Demultiplexer extends Thread {
                 
                 // listen for UDP datagrams this function blocks, which
                 // is what we want.
-                p = new DatagramPacket(buf,TCPPacket.MAX_PACKET_SIZE+20);
-
-                ds.receive(p);
-
-                // when received, invoke TCPWrapper.unwrap(datagram)
-                packet = TCPWrapper.unwrap(p);
-
-                System.out.println("\n>>> packet received from "+
-                                   p.getAddress()+" size="+p.getLength());
-                System.out.println(">>> "+packet+"\n");
-
-                
-                // invoke demultiplex - will NOT return until the packet
-                // has been processed completely.
-                demultiplex(packet);
+                seg = segments.take();
+                try {
+                    p.setData(seg.array, seg.offset, seg.length);
+
+                    ds.receive(p);
+
+                    deliver(p, packet);
+                }
+                finally {
+                    seg.release();
+                }
+
+                // with leak detection on, now and then report segments
+                // that have been held too long
+                if (stack.segmentDebug) {
+                    long now = System.currentTimeMillis();
+                    if (now-leaksChecked>=LEAK_AGE) {
+                        leaksChecked = now;
+                        segments.leaks(LEAK_AGE);
+                    }
+                }
             }
             //--------------------------------------
 
@@ -121,6 +165,29 @@ class Demultiplexer extends Thread {
     }
 
     
+    // unwraps a datagram received (or replayed, see tcpreplay) into
+    // packet and demultiplexes it. will NOT return until the packet has
+    // been processed completely.
+    void deliver(DatagramPacket p, TCPPacket packet) {
+        TCPCapture c = wrapper.capture;
+        if (c!=null)
+            c.inbound(p.getData(), p.getOffset(), p.getLength(),
+                      p.getAddress(), p.getPort());
+
+        // when received, invoke TCPWrapper.unwrap(datagram)
+        if (!wrapper.unwrap(p, packet))
+            return; // corrupted on the way
+
+        if (stack.tracePackets) {
+            System.out.println("\n>>> packet received from "+
+                               p.getAddress()+" size="+p.getLength());
+            System.out.println(">>> "+packet+"\n");
+        }
+
+        demultiplex(packet);
+    }
+
+
     // receives the TCP packet, decides which connection to pass it off
     // to.  also handles special case of a new connection, or an
     // un-usable packet.
@@ -132,10 +199,8 @@ class Demultiplexer extends Thread {
     public void demultiplex(TCPPacket packet) {
 
         // remember, when receiving, destPort is the localPort.
-        String hashString = getHashTableKey(packet.sourceAddr,packet.destPort,
-                                            packet.sourcePort);
-
-        StudentSocketImpl c = (StudentSocketImpl)connectionTable.get(hashString);
+        StudentSocketImpl c = connection(packet.sourceAddr, packet.destPort,
+                                         packet.sourcePort);
 
 
         // either we find connection in the connectionTable, or we find
@@ -154,35 +219,80 @@ class Demultiplexer extends Thread {
 
             
             // try and find the listener in the listeningTable this time.
-            hashString = getHashTableKey(packet.destPort);
-
-            c = (StudentSocketImpl) listeningTable.get(hashString);
+            c = listener(packet.destPort);
 
             // if the listeningSocket was found.
             if (c!=null){
                 // System.out.println("%% listeningSocket found: "+c);
   	            c.receivePacket(packet);
             }
-	        else
+	        else if (isServerPort(packet.destPort)) {
 	            System.err.println("!!! synflag UNMATCHED PACKET");
+	            missed(packet, "dropped");
+	        }
+	        else
+	            refuse(packet);
         }
-	else
+	else if (!packet.rstFlag) {
 	  System.err.println("!!! reg UNMATCHED PACKET");
+	  refuse(packet);
+	}
+	else
+	  missed(packet, "ignored");
 
     }
 
 
+    // records a segment that found no connection, see TCPEvents
+    private void missed(TCPPacket packet, String action) {
+        if (!TCPEvents.demuxMissEnabled)
+            return;
+        TCPEvents.DemuxMiss e = new TCPEvents.DemuxMiss();
+        if (e.shouldCommit()) {
+            e.localPort = packet.destPort;
+            e.remoteAddress = packet.sourceAddr.getHostAddress();
+            e.remotePort = packet.sourcePort;
+            e.syn = packet.synFlag;
+            e.action = action;
+            e.commit();
+        }
+    }
+
+
+    // answers a segment that has no connection with a RST
+    private void refuse(TCPPacket packet) {
+        missed(packet, "reset");
+        wrapper.send(TCPPacket.resetFor(packet),
+                     routes.passive(packet.sourceAddr, packet.sourcePort));
+    }
+
+
+    // records that a server accepts connections on localPort. only one
+    // server may have a port; unless reuse is set (SO_REUSEADDR), it
+    // also may not while connections on the port are open, TIME_WAIT
+    // included.
+    synchronized public void registerServerPort( int localPort, boolean reuse )
+        throws BindException {
+        if (serverTable.get(null, localPort, 0)!=null)
+            throw new BindException("Address already in use");
+        if (!reuse)
+            for (StudentSocketImpl c : connectionTable.values())
+                if (c.localPort()==localPort)
+                    throw new BindException("Address already in use");
+        serverTable.put(null, localPort, 0, Boolean.TRUE);
+    }
+
+    synchronized public void unregisterServerPort( int localPort ) {
+        serverTable.remove(null, localPort, 0);
+    }
+
     // adds a StudentSocketImpl to the listeningTable hashTable.
     synchronized public void registerListeningSocket (
         int localPort, StudentSocketImpl connection) throws IOException {
 
-        // String is a reasonable hash key to identify a unique
-        // combination of these 2 variables.
-        String hashKey =  getHashTableKey(localPort);
-
-        if (listeningTable.get(hashKey)!=null )
+        if (listeningTable.get(null, localPort, 0)!=null )
             throw(new IOException("%% CONNECTION EXISTS ALREADY"));
-        listeningTable.put(hashKey, connection);
+        listeningTable.put(null, localPort, 0, connection);
     }
     
     // adds a StudentSocketImpl to the connectionTable hashTable.
@@ -190,48 +300,63 @@ class Demultiplexer extends Thread {
                                    int localPort, int remotePort,
                                    StudentSocketImpl connection) throws IOException{
         
-        // String is a reasonable hash key to identify a unique
-        // combination of these 3 variables.
-        String hashKey = getHashTableKey(remoteHost,localPort,remotePort);
-        if (connectionTable.get(hashKey)!=null)
+        if (connectionTable.get(remoteHost, localPort, remotePort)!=null)
             throw(new IOException("%% CONNECTION EXISTS ALREADY"));
-        connectionTable.put( hashKey, connection);
+        connectionTable.put(remoteHost, localPort, remotePort, connection);
     }
 
     synchronized public void unregisterListeningSocket (
         int localPort, StudentSocketImpl connection) throws IOException {
 
-        String hashKey =  getHashTableKey(localPort);
-
-        if (listeningTable.get(hashKey)!=connection )
+        if (listeningTable.get(null, localPort, 0)!=connection )
             // must be the EXACT SAME reference
             throw(new IOException("%% CANNOT UNREGISTER LISTENING SOCKET"));
         
-        listeningTable.remove(hashKey);
+        listeningTable.remove(null, localPort, 0);
     }
 
     synchronized public void unregisterConnection(InetAddress remoteHost,
                                    int localPort, int remotePort,
                                    StudentSocketImpl connection) throws IOException{
         
-        String hashKey = getHashTableKey(remoteHost,localPort,remotePort);
-        if (connectionTable.get(hashKey)!=connection)
+        if (connectionTable.get(remoteHost, localPort, remotePort)!=connection)
             // must be the EXACT SAME reference
             throw(new IOException("%% CANNOT UNREGISTER CONNECTION"));
-        connectionTable.remove(hashKey);
+        connectionTable.remove(remoteHost, localPort, remotePort);
+    }
+
+
+    // for TCPResources: the connections in the connection table, and
+    // the size of each table
+    synchronized ArrayList<StudentSocketImpl> connections() {
+        return connectionTable.values();
+    }
+
+    synchronized int connectionCount() {
+        return connectionTable.size();
+    }
+
+    synchronized int listenerCount() {
+        return listeningTable.size();
+    }
+
+    synchronized int serverPortCount() {
+        return serverTable.size();
     }
 
 
-    // for the listeningTable
-    public String getHashTableKey(int localPort) {
-        return( Integer.toString(localPort));
+    // lookups for demultiplex()
+    synchronized StudentSocketImpl connection(InetAddress remoteHost,
+                                              int localPort, int remotePort) {
+        return connectionTable.get(remoteHost, localPort, remotePort);
+    }
+
+    synchronized StudentSocketImpl listener(int localPort) {
+        return listeningTable.get(null, localPort, 0);
     }
 
-    // for the ConnectionTable
-    public String getHashTableKey(InetAddress remoteHost,
-                                int localPort, int remotePort) {
-        return( remoteHost.getHostAddress() + Integer.toString(localPort)
-                + Integer.toString(remotePort));
+    synchronized boolean isServerPort(int localPort) {
+        return serverTable.get(null, localPort, 0)!=null;
     }
 
     // for connections that are actively connecting (as opposed to
@@ -241,9 +366,205 @@ class Demultiplexer extends Thread {
         return(nextAvailablePortNumber);
     }
 
-    static public void main (String args[]) {
+    // a hash table keyed on a remote address and two ports, with
+    // nothing made per lookup: the key is a long of the address's hash
+    // code and the ports, found by linear probing. the address is
+    // compared as well, since an IPv6 address does not fit in its hash.
+    // tables by local port alone use no address and remote port 0.
+    // not synchronized; the Demultiplexer's methods are.
+    static final class Table<V> {
+        private long[] keys = new long[16];
+        private InetAddress[] addrs = new InetAddress[16];
+        private Object[] vals = new Object[16];
+        private int size;
+
+        private static long key(InetAddress remote, int localPort, int remotePort) {
+            long h = remote==null ? 0 : remote.hashCode();
+            return (h<<32) | ((localPort & 0xffffL)<<16) | (remotePort & 0xffffL);
+        }
+
+        // the home slot of a key, in a table of mask+1 slots
+        private static int slot(long key, int mask) {
+            long x = key * 0x9E3779B97F4A7C15L;
+            return (int) (x ^ (x>>>32)) & mask;
+        }
+
+        // the slot holding the entry, or -1
+        private int find(InetAddress remote, int localPort, int remotePort) {
+            long k = key(remote, localPort, remotePort);
+            int mask = vals.length-1;
+            for (int i=slot(k, mask); vals[i]!=null; i=(i+1)&mask)
+                if (keys[i]==k &&
+                    (remote==null ? addrs[i]==null : remote.equals(addrs[i])))
+                    return i;
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(InetAddress remote, int localPort, int remotePort) {
+            int i = find(remote, localPort, remotePort);
+            return i<0 ? null : (V) vals[i];
+        }
+
+        // adds an entry; there must be none for the key yet
+        void put(InetAddress remote, int localPort, int remotePort, V value) {
+            if (2*(size+1)>vals.length)
+                grow();
+            long k = key(remote, localPort, remotePort);
+            int mask = vals.length-1;
+            int i = slot(k, mask);
+            while (vals[i]!=null)
+                i = (i+1)&mask;
+            keys[i] = k;
+            addrs[i] = remote;
+            vals[i] = value;
+            size++;
+        }
+
+        void remove(InetAddress remote, int localPort, int remotePort) {
+            int i = find(remote, localPort, remotePort);
+            if (i<0)
+                return;
+            size--;
+            // move back the entries after it that would no longer be
+            // found past the gap
+            int mask = vals.length-1;
+            for (int j=(i+1)&mask; vals[j]!=null; j=(j+1)&mask) {
+                int home = slot(keys[j], mask);
+                if (((j-home)&mask) >= ((j-i)&mask)) {
+                    keys[i] = keys[j];
+                    addrs[i] = addrs[j];
+                    vals[i] = vals[j];
+                    i = j;
+                }
+            }
+            addrs[i] = null;
+            vals[i] = null;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            InetAddress[] oldAddrs = addrs;
+            Object[] oldVals = vals;
+            keys = new long[2*oldVals.length];
+            addrs = new InetAddress[2*oldVals.length];
+            vals = new Object[2*oldVals.length];
+            int mask = vals.length-1;
+            for (int j=0; j<oldVals.length; j++)
+                if (oldVals[j]!=null) {
+                    int i = slot(oldKeys[j], mask);
+                    while (vals[i]!=null)
+                        i = (i+1)&mask;
+                    keys[i] = oldKeys[j];
+                    addrs[i] = oldAddrs[j];
+                    vals[i] = oldVals[j];
+                }
+        }
+
+        int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        ArrayList<V> values() {
+            ArrayList<V> all = new ArrayList<V>(size);
+            for (Object v : vals)
+                if (v!=null)
+                    all.add((V) v);
+            return all;
+        }
+    }
+
+
+    static public void main (String args[]) throws Exception {
         // for DEBUGGING only!!!
 
+        // checks that receiving allocates nothing per datagram: stack A
+        // sends to stack B as fast as the rate limit lets it, and once
+        // both are warm the bytes B's Demultiplexer thread allocates are
+        // counted against the datagrams it received. that thread does
+        // all of the receive path, down to the ACKs it sends.
+
+        int portA = args.length>0 ? Integer.parseInt(args[0]) : 15230;
+        int portB = portA+1;
+        long seconds = args.length>1 ? Long.parseLong(args[1]) : 5;
+        InetAddress lo = InetAddress.getLoopbackAddress();
+        TCPStack a = new TCPStack(portA);
+        TCPStack b = new TCPStack(portB);
+        for (TCPStack s : new TCPStack[] { a, b }) {
+            s.traceStates = false;
+            s.tracePackets = false;
+            s.wrapper.setPacketRate(50);
+        }
+        b.routes.add(lo, 0, new InetSocketAddress(lo, portA));
+        a.start();
+        b.start();
+
+        final ServerSocket server = b.serverSocket(portB);
+        final Socket[] accepted = new Socket[1];
+        Thread acceptor = new Thread("allocation test acceptor") {
+                public void run() {
+                    try {
+                        accepted[0] = server.accept();
+                    }
+                    catch (IOException e) {
+                        System.out.println(e);
+                    }
+                }
+            };
+        acceptor.start();
+        final Socket out = a.socket();
+        out.connect(new InetSocketAddress(lo, portB));
+        acceptor.join();
+        final Socket in = accepted[0];
+        Thread writer = new Thread("allocation test writer") {
+                public void run() {
+                    byte[] buf = new byte[4096];
+                    try {
+                        while (true)
+                            out.getOutputStream().write(buf);
+                    }
+                    catch (IOException e) {
+                    }
+                }
+            };
+        Thread reader = new Thread("allocation test reader") {
+                public void run() {
+                    byte[] buf = new byte[4096];
+                    try {
+                        while (in.getInputStream().read(buf)>=0)
+                            ;
+                    }
+                    catch (IOException e) {
+                    }
+                }
+            };
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)
+            java.lang.management.ManagementFactory.getThreadMXBean();
+        Thread.sleep(3000); // warm up
+        // the JIT allocates a few bytes now and then when it recompiles
+        // something, so each of 3 periods is counted on its own. an
+        // object made per datagram costs at least 16 bytes each, in all
+        // of them; passing takes a period with under a byte per datagram.
+        boolean passed = false;
+        for (int i=0; i<3; i++) {
+            long bytes = threads.getThreadAllocatedBytes(b.demux.getId());
+            long received = a.wrapper.packetCounter;
+            Thread.sleep(seconds*1000);
+            bytes = threads.getThreadAllocatedBytes(b.demux.getId()) - bytes;
+            received = a.wrapper.packetCounter - received;
+            System.out.println("receiving "+received+" datagrams allocated "+
+                               bytes+" bytes, "+
+                               (received==0 ? 0 : bytes/received)+
+                               " per datagram");
+            passed |= bytes<received;
+        }
+        System.exit(passed ? 0 : 1);
     }
     
 }
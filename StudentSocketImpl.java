@@ -1,7 +1,11 @@
 import java.net.*;
 import java.io.*;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 class StudentSocketImpl extends BaseSocketImpl {
 
@@ -10,191 +14,1558 @@ class StudentSocketImpl extends BaseSocketImpl {
   // protected int port;
   // protected int localport;
 
-  private Demultiplexer D;
+  // retransmission timeout before we have an RTT sample, its bounds
+  // once we do, and the ceiling for persist timer backoff
+  private static final long INITIAL_RTO = 2500;
+  private static final long MIN_RTO = 1000;
+  private static final long MAX_RTO = 60 * 1000;
+  private static final long MAX_PERSIST = 60 * 1000;
+
+  // retransmissions of one segment before the connection is given up:
+  // about two minutes for a SYN, a few minutes for anything else
+  private static final int MAX_SYN_RETRIES = 5;
+  private static final int MAX_RETRIES = 8;
+
+  // how long a closed connection waits in FIN_WAIT_2 for the peer's FIN
+  private static final long FIN_WAIT_2_TIMEOUT = 60 * 1000;
+
+  // largest file region sendFile() maps at once
+  private static final int MAX_FILE_MAP = 16 * 1024 * 1024;
+
+  // timer references passed back to handleTimer, for the timers that
+  // are not tied to one state
+  private static final Object RETRANSMIT = new Object();
+  private static final Object PERSIST = new Object();
+  private static final Object TIMEWAIT = new Object();
+  private static final Object KEEPALIVE = new Object();
+
+  // what processData() found in a segment
+  private static final int SEG_NONE = 0; // nothing to answer
+  private static final int SEG_ACK = 1;  // must be acknowledged
+  private static final int SEG_FIN = 2;  // FIN accepted in order
+
+  // the stack this connection belongs to, and its Demultiplexer
+  private final TCPStack stack;
+  private final Demultiplexer D;
+
+  // the stack's timer, held from the first timer task until CLOSED
   private Timer tcpTimer;
 
+  // the UDP endpoint our segments go to, from TCPRouteTable when the
+  // connection opens
+  private InetSocketAddress route;
+
+  // guards everything below. blocked threads wait on changed; a
+  // java.util.concurrent lock rather than a monitor, so that a virtual
+  // thread blocked on a connection gives up its carrier thread.
+  //
+  // the demux thread, the timer thread and the application all take it
+  // before touching the connection, state machine included: the FSM is
+  // table driven (NEXT, ACTION), not lock free, since a transition
+  // changes the buffers, windows and timers along with the state.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+
   // enum to track all possible states of TCP FSM
   private enum states {
     CLOSED, LISTEN, SYN_SENT, SYN_RCVD, ESTABLISHED, FIN_WAIT_1, FIN_WAIT_2, CLOSING, CLOSE_WAIT, LAST_ACK, TIME_WAIT
   }
 
-  // current state
-  private states currState = states.CLOSED;
-  private int seqNum;
-  private int ackNum;
+  // FSM events. the first six are what a segment is, from its header
+  // flags alone; the rest come from processing a segment, from the
+  // application and from timers.
+  private static final int EV_SYN = 0;       // SYN
+  private static final int EV_SYN_ACK = 1;   // SYN and ACK
+  private static final int EV_ACK = 2;       // ACK, no SYN or FIN
+  private static final int EV_FIN = 3;       // FIN and ACK
+  private static final int EV_BARE = 4;      // neither SYN nor ACK
+  private static final int EV_RST = 5;       // RST
+  private static final int EV_FIN_IN = 6;    // peer's FIN accepted in order
+  private static final int EV_FIN_ACKED = 7; // our FIN acknowledged
+  private static final int EV_CONNECT = 8;
+  private static final int EV_LISTEN = 9;
+  private static final int EV_CLOSE = 10;
+  private static final int EV_TIMEOUT = 11;  // 2MSL is up
+  private static final int EV_ABORT = 12;    // retries or a timeout ran out
+  private static final int SEGMENT_EVENTS = 6;
+  private static final int EVENTS = 13;
+
+  // what receivePacket() does with a segment
+  private static final int A_DROP = 0;
+  private static final int A_PASSIVE_OPEN = 1;  // SYN on a listener
+  private static final int A_ACTIVE_OPEN = 2;   // SYN-ACK for our SYN
+  private static final int A_HANDSHAKE = 3;     // ACK of our SYN-ACK
+  private static final int A_DATA = 4;          // ACK, data and FIN processing
+  private static final int A_TIME_WAIT = 5;     // FIN again in TIME_WAIT
+  private static final int A_RESET = 6;         // RST, if its sequence number is right
+
+  // the FSM as tables: NEXT[state][event] is the state an event leads
+  // to (null if it changes nothing), ACTION[state][segment event] what
+  // is done with such a segment
+  private static final states[][] NEXT = new states[states.values().length][EVENTS];
+  private static final int[][] ACTION = new int[states.values().length][SEGMENT_EVENTS];
+
+  static {
+    on(states.CLOSED, EV_CONNECT, states.SYN_SENT);
+    on(states.CLOSED, EV_LISTEN, states.LISTEN);
+    on(states.LISTEN, EV_SYN, states.SYN_RCVD);
+    on(states.LISTEN, EV_CLOSE, states.CLOSED);
+    on(states.SYN_SENT, EV_SYN_ACK, states.ESTABLISHED);
+    on(states.SYN_SENT, EV_CLOSE, states.CLOSED);
+    on(states.SYN_RCVD, EV_ACK, states.ESTABLISHED);
+    on(states.SYN_RCVD, EV_FIN, states.ESTABLISHED);
+    on(states.SYN_RCVD, EV_CLOSE, states.FIN_WAIT_1);
+    on(states.ESTABLISHED, EV_FIN_IN, states.CLOSE_WAIT);
+    on(states.ESTABLISHED, EV_CLOSE, states.FIN_WAIT_1);
+    on(states.FIN_WAIT_1, EV_FIN_ACKED, states.FIN_WAIT_2);
+    on(states.FIN_WAIT_1, EV_FIN_IN, states.CLOSING);
+    on(states.FIN_WAIT_2, EV_FIN_IN, states.TIME_WAIT);
+    on(states.CLOSE_WAIT, EV_CLOSE, states.LAST_ACK);
+    on(states.CLOSING, EV_FIN_ACKED, states.TIME_WAIT);
+    on(states.LAST_ACK, EV_FIN_ACKED, states.TIME_WAIT);
+    on(states.TIME_WAIT, EV_TIMEOUT, states.CLOSED);
+
+    // a reset ends the connection, except that a half-open passive one
+    // goes back to listening (RFC 793). one in TIME_WAIT is left to
+    // time out (RFC 1337), and a listener ignores resets. aborting ends
+    // any connection.
+    on(states.SYN_SENT, EV_RST, states.CLOSED);
+    on(states.SYN_RCVD, EV_RST, states.LISTEN);
+    for (states st : states.values())
+      if (st != states.CLOSED)
+        on(st, EV_ABORT, states.CLOSED);
+
+    ACTION[states.LISTEN.ordinal()][EV_SYN] = A_PASSIVE_OPEN;
+    ACTION[states.SYN_SENT.ordinal()][EV_SYN_ACK] = A_ACTIVE_OPEN;
+    ACTION[states.SYN_RCVD.ordinal()][EV_ACK] = A_HANDSHAKE;
+    ACTION[states.SYN_RCVD.ordinal()][EV_FIN] = A_HANDSHAKE;
+    ACTION[states.SYN_SENT.ordinal()][EV_RST] = A_RESET;
+    ACTION[states.SYN_RCVD.ordinal()][EV_RST] = A_RESET;
+    states[] synchronizedStates = { states.ESTABLISHED, states.FIN_WAIT_1, states.FIN_WAIT_2,
+        states.CLOSE_WAIT, states.CLOSING, states.LAST_ACK };
+    for (states st : synchronizedStates) {
+      ACTION[st.ordinal()][EV_ACK] = A_DATA;
+      ACTION[st.ordinal()][EV_FIN] = A_DATA;
+      ACTION[st.ordinal()][EV_BARE] = A_DATA;
+      ACTION[st.ordinal()][EV_RST] = A_RESET;
+      on(st, EV_RST, states.CLOSED);
+    }
+    ACTION[states.TIME_WAIT.ordinal()][EV_FIN] = A_TIME_WAIT;
+  }
+
+  private static void on(states from, int event, states to) {
+    NEXT[from.ordinal()][event] = to;
+  }
+
+  // current state. it only changes through transition(), with lock
+  // held; volatile so that it can be read without the lock, as by
+  // isPending() and the leak check.
+  private volatile states state = states.CLOSED;
+
+  // seqNum is the next sequence number we will send, sndUna the oldest
+  // one not yet acknowledged. ackNum is the next one we expect.
+  private int seqNum;
+  private int sndUna;
+  private int ackNum;
+
+  // highest sequence number sent so far; seqNum falls behind it after
+  // a retransmission timeout
+  private int sndMax;
+
+  // 1 while our SYN is unacknowledged, else 0. the SYN takes sequence
+  // number sndUna then, and the send buffer starts after it.
+  private int synPending;
+
+  // TCP Fast Open, see TCPFastOpen. a client's cookie for its SYN (empty
+  // to ask for one), or the cookie a server puts on its SYN-ACK.
+  private byte[] fastOpenCookie;
+
+  // client: connect() returned with the SYN held back, to go out with
+  // the first write
+  private boolean synDeferred;
+
+  // client: our SYN was retransmitted. a retransmitted SYN carries no
+  // data, so a SYN-ACK that takes none says nothing about the cookie.
+  private boolean synResent;
+
+  // server: the SYN's cookie was good and its data taken, so the
+  // connection is handed to accept() and may send before the handshake
+  // is done
+  private volatile boolean fastOpened;
+
+  // for TCPEvents and the leak check: when the current state was
+  // entered (System.nanoTime()), volatile like state since the leak
+  // check reads it without the lock; and the handshake being timed, if
+  // that event is recorded
+  private volatile long stateEntered = System.nanoTime();
+  private TCPEvents.Handshake handshake;
+
+  // for the stack's latency histograms: when connect() sent the SYN and
+  // when close() was called (System.nanoTime()), 0 when not timing
+  private long connectStart;
+  private long closeStart;
+
+  // peer's advertised window in bytes, already scaled
+  private int sndWnd;
+
+  // window scale shifts: sndWscale applies to windows we receive,
+  // rcvWscale to windows we advertise. both are 0 unless each side
+  // sent the option on its SYN (windowScaling).
+  private int sndWscale;
+  private int rcvWscale;
+  private boolean windowScaling;
+
+  // last window we advertised, in bytes, to know when an update is due
+  private int lastAdvertised;
+
+  // largest segment the peer accepts, from its MSS option
+  private int sndMss;
+
+  // SACK permitted and timestamps, each on only if both SYNs carried it
+  private boolean sackOk;
+  private boolean tsOk;
+
+  // timestamp to echo back (TS.Recent in RFC 7323), also used for PAWS
+  private int tsRecent;
+
+  // smoothed RTT and its variance from timestamp samples, in ms, and
+  // the retransmission timeout derived from them (RFC 6298)
+  private long srtt;
+  private long rttvar;
+  private long rto = INITIAL_RTO;
+
+  // timeouts in a row on the oldest unacknowledged segment
+  private int rtxRetries;
+
+  // a ServerSocket's impl, after listen()
+  private boolean serving;
+
+  // why the connection was aborted: reset by the peer, refused, or
+  // timed out. thrown by reads and writes once buffered data is gone.
+  private volatile IOException error;
+
+  // receive buffer: a ring of recvCount bytes starting at recvHead,
+  // recvSize bytes long. it comes from the stack's TCPBufferPool with the
+  // first data and goes back when it is empty again (recvRing()), so an
+  // idle connection holds none.
+  private int recvSize;
+  private byte[] recvBuf;
+  private int recvHead;
+  private int recvCount;
+  private boolean finReceived;
+
+  // out-of-order data is stored in the receive ring right where it
+  // belongs, past the readable bytes. these sorted, disjoint sequence
+  // ranges [oooStart, oooEnd) say which parts of that space hold data.
+  // oooLatest is the range that last grew, reported first in SACK.
+  // the arrays are made with the first such range.
+  private static final int MAX_OOO = 16;
+  private int[] oooStart;
+  private int[] oooEnd;
+  private int oooCount;
+  private int oooLatest;
+
+  // a FIN that arrived ahead of data we are still missing
+  private boolean finPending;
+  private int finSeq;
+
+  // reused for the SACK option of our ACKs, once there is one to send
+  private int[] sackOut;
+
+  // send buffer: a ring of sndCount bytes starting at sndHead. the byte
+  // at sndHead has sequence number sndUna + synPending; everything from
+  // seqNum on is not sent yet. segments, first sends and retransmissions alike, are
+  // slices of it written straight to the wire, see sendData(). like the
+  // receive ring it is sndSize bytes long and only held while it has
+  // bytes in it (sndRing()).
+  private int sndSize;
+  private ByteBuffer sndBuf;
+  private int sndHead;
+  private int sndCount;
+
+  // a file region queued by sendFile(): the last fileCount of the
+  // sndCount bytes come from this read-only mapping, starting at
+  // fileHead, and the ring holds only the first sndCount - fileCount.
+  private ByteBuffer sndFile;
+  private int fileHead;
+  private int fileCount;
+
+  // reused for every data segment we send while the send ring is held,
+  // see sendData()
+  private TCPPacket dataPkt;
+
+  // reused for every segment we send without data (ACKs, SYN, FIN,
+  // RST, probes), under lock, see control()
+  private TCPPacket ctlPkt;
+
+  // segments sent and not yet acknowledged, SYN and FIN included
+  private final TCPRetransmitQueue rtxQueue = new TCPRetransmitQueue();
+
+  // the one retransmission timer: it is due at rtxDeadline (0 when
+  // stopped). restarting only moves the deadline; the scheduled task,
+  // due at rtxTimerAt, is replaced only if it would go off too late.
+  private long rtxDeadline;
+  private TCPTimerTask rtxTimer;
+  private long rtxTimerAt;
+
+  // zero window persist timer
+  private TCPTimerTask persistTimer;
+  private long persistBackoff = INITIAL_RTO;
+
+  // 2MSL wait in TIME_WAIT
+  private TCPTimerTask timeWaitTimer;
+
+  // keepalive: when we last heard from the peer, and the probes sent
+  // since without an answer
+  private TCPTimerTask keepAliveTimer;
+  private long lastHeard;
+  private int keepAliveSent;
+
+  // socket options (setOption) besides the buffer sizes, which are the
+  // buffers' own sizes. lingerTime is in seconds, -1 when off.
+  private boolean noDelay;
+  private int soTimeout;
+  private int lingerTime = -1;
+  private boolean keepAlive;
+  private boolean reuseAddress = true;
+
+  private final TCPInputStream appIS = new TCPInputStream();
+  private final TCPOutputStream appOS = new TCPOutputStream();
+
+  // told whenever readiness may have changed, if a TCPChannel on this
+  // connection is registered with one, and that channel, which it queues
+  private TCPPoller poller;
+  private TCPPoller.Pollable pollable;
+
+  StudentSocketImpl(TCPStack stack) { // default constructor
+    this.stack = stack;
+    this.D = stack.demux;
+    sndMss = stack.mss;
+    recvSize = stack.recvBufferSize;
+    sndSize = stack.sendBufferSize;
+    chooseWindowScale();
+  }
+
+  /**
+   * Returns the receive ring, taking one from the pool if we hold none.
+   */
+  private byte[] recvRing() {
+    if (recvBuf == null)
+      recvBuf = stack.buffers.takeRecv(recvSize);
+    return recvBuf;
+  }
+
+  /**
+   * Gives the receive ring back to the pool if nothing in it is left to
+   * read, in order or out of it.
+   */
+  private void releaseRecvRing() {
+    if (recvBuf != null && recvCount == 0 && oooCount == 0) {
+      stack.buffers.giveRecv(recvBuf);
+      recvBuf = null;
+      recvHead = 0;
+    }
+  }
+
+  /**
+   * Returns the send ring, taking one from the pool if we hold none.
+   */
+  private ByteBuffer sndRing() {
+    if (sndBuf == null)
+      sndBuf = stack.buffers.takeSend(sndSize);
+    return sndBuf;
+  }
+
+  /**
+   * Gives the send ring back to the pool once everything in it is
+   * acknowledged, along with the packet its segments went out in.
+   */
+  private void releaseSndRing() {
+    if (sndBuf != null && sndCount == fileCount) {
+      stack.buffers.giveSend(sndBuf);
+      sndBuf = null;
+      sndHead = 0;
+      dataPkt = null;
+    }
+  }
+
+  /**
+   * Offers the smallest shift that lets us advertise the whole receive
+   * buffer.
+   */
+  private void chooseWindowScale() {
+    rcvWscale = 0;
+    while (rcvWscale < TCPOptions.MAX_WSCALE && (recvSize >> rcvWscale) > 0xffff)
+      rcvWscale++;
+  }
+
+  /**
+   * Connects this socket to the specified port number on the specified host.
+   *
+   * @param address the IP address of the remote host.
+   * @param port    the port number.
+   * @exception IOException if an I/O error occurs when attempting a connection.
+   */
+  public void connect(InetAddress address, int port) throws IOException {
+    if (startConnect(address, port, true))
+      awaitEstablished();
+  }
+
+  /**
+   * Connects this socket, giving up after timeout milliseconds (0 for
+   * no limit other than the SYN retries).
+   *
+   * @exception SocketTimeoutException if the timeout expires first.
+   */
+  protected void connect(SocketAddress address, int timeout) throws IOException {
+    InetSocketAddress a = (InetSocketAddress) address;
+    if (startConnect(a.getAddress(), a.getPort(), true))
+      awaitEstablished(timeout);
+  }
+
+  /**
+   * Sends the SYN for a connection to the given host and port, without
+   * waiting for the handshake to finish.
+   */
+  void startConnect(InetAddress address, int port) throws IOException {
+    startConnect(address, port, false);
+  }
+
+  /**
+   * Starts a connection. With Fast Open on and a cookie cached for the
+   * server, the SYN may be held back (deferSyn) to carry the first data
+   * written, the connection then counting as open at once.
+   *
+   * @return true if the SYN was sent, false if it was held back
+   */
+  boolean startConnect(InetAddress address, int port, boolean deferSyn) throws IOException {
+    lock.lock();
+    try {
+      localport = D.getNextAvailablePort();
+      this.address = address;
+      this.port = port;
+      seqNum = 0;
+      sndUna = 0;
+      sndMax = 0;
+      ackNum = 0;
+      route = stack.routes.active(address, port);
+      D.registerConnection(address, localport, port, this);
+      transition(EV_CONNECT);
+      connectStart = System.nanoTime();
+      beginHandshake(true);
+      if (stack.fastOpen.enabled) {
+        byte[] cookie = stack.fastOpen.cached(address, port);
+        fastOpenCookie = cookie == null ? new byte[0] : cookie;
+        if (cookie != null && deferSyn) {
+          synDeferred = true;
+          if (handshake != null)
+            handshake.fastOpen = true;
+          return false;
+        }
+      }
+      sendpkt(false, true, false);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the handshake started by startConnect() or
+   * listenForConnection() to finish.
+   *
+   * @exception IOException if the connection was refused, reset or
+   *                        timed out instead
+   */
+  void awaitEstablished() throws IOException {
+    awaitEstablished(0);
+  }
+
+  /**
+   * Same, giving up after timeout milliseconds (0 for no limit). A
+   * connection still being opened is then aborted, and a listener
+   * nobody connected to stops listening.
+   *
+   * @exception SocketTimeoutException if the timeout expires first.
+   */
+  void awaitEstablished(long timeout) throws IOException {
+    long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    lock.lock();
+    try {
+      while (isPending()) {
+        long wait = 50;
+        if (deadline != 0) {
+          wait = Math.min(wait, deadline - System.currentTimeMillis());
+          if (wait <= 0) {
+            if (state == states.LISTEN) {
+              D.unregisterListeningSocket(localport, this);
+              transition(EV_CLOSE);
+              throw new SocketTimeoutException("Accept timed out");
+            }
+            if (state == states.SYN_SENT) {
+              SocketTimeoutException e = new SocketTimeoutException("connect timed out");
+              abort(e);
+              throw e;
+            }
+            deadline = 0; // a connection arrived: let its handshake finish
+            continue;
+          }
+        }
+        try {
+          changed.await(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("connect interrupted");
+        }
+      }
+      if (state == states.CLOSED && error != null)
+        throw error;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Starts timing the handshake for a TCPEvents.Handshake, if that event
+   * is being recorded.
+   */
+  private void beginHandshake(boolean active) {
+    if (!TCPEvents.handshakeEnabled)
+      return;
+    TCPEvents.Handshake e = new TCPEvents.Handshake();
+    e.begin();
+    e.active = active;
+    handshake = e;
+  }
+
+  /**
+   * Records the handshake timed by beginHandshake(), now that it is
+   * done.
+   */
+  private void endHandshake() {
+    TCPEvents.Handshake e = handshake;
+    handshake = null;
+    if (e == null)
+      return;
+    e.end();
+    if (e.shouldCommit()) {
+      e.connection(localport, address, port);
+      if (!e.active)
+        e.fastOpen = fastOpened;
+      e.commit();
+    }
+  }
+
+  /**
+   * The number of FSM states, and the name of each, for TCPResources.
+   */
+  static int stateCount() {
+    return states.values().length;
+  }
+
+  static String stateName(int ordinal) {
+    return states.values()[ordinal].name();
+  }
+
+  /**
+   * For TCPResources.check(): why this connection looks leaked, or null
+   * if it does not. One is leaked if it has sat in a state that should
+   * not last (anything but ESTABLISHED and LISTEN) for longer than limit
+   * milliseconds, or if it has been CLOSED for a second and is still
+   * registered.
+   */
+  String leaked(long limit) {
+    states s = state;
+    long age = (System.nanoTime() - stateEntered) / 1000000;
+    if (s == states.CLOSED)
+      return age < 1000 ? null : "closed but still in the connection table";
+    if (s != states.ESTABLISHED && s != states.LISTEN && age > limit)
+      return "stuck in " + s + " for " + age / 1000 + " s";
+    return null;
+  }
+
+  /**
+   * The connection's ports and peer, for messages.
+   */
+  String describe() {
+    return "local " + localport + " to " + (address == null ? "?" : address.getHostAddress()) + ":" + port;
+  }
+
+  /**
+   * Returns true while a connection is being set up: listening, or in
+   * the middle of the handshake.
+   */
+  boolean isPending() {
+    states s = state;
+    return s == states.LISTEN || s == states.SYN_SENT || (s == states.SYN_RCVD && !fastOpened);
+  }
+
+  /**
+   * Applies an event to the current state through the NEXT table, then
+   * does whatever goes with entering the new state. The caller holds
+   * lock, which orders transitions against each other and against the
+   * buffer and window state they go with.
+   *
+   * @param event one of the EV_ constants
+   * @return true if the event changed the state
+   * @throws IOException if unregistering the socket goes awry
+   */
+  private boolean transition(int event) throws IOException {
+    assert lock.isHeldByCurrentThread();
+    states from = state;
+    states to = NEXT[from.ordinal()][event];
+    if (to == null)
+      return false;
+    state = to;
+    entered(from, to);
+    return true;
+  }
+
+  /**
+   * Handles entering a state: the keepalive, FIN_WAIT_2 and TIME_WAIT
+   * timers, and the final socket closing, which gives back the buffers.
+   */
+  private void entered(states from, states to) throws IOException {
+    if (stack.traceStates)
+      System.out.println("!!! " + from + " -> " + to);
+    long now = System.nanoTime();
+    if (TCPEvents.stateChangeEnabled) {
+      TCPEvents.StateChange e = new TCPEvents.StateChange();
+      if (e.shouldCommit()) {
+        e.connection(localport, address, port);
+        e.from = from.name();
+        e.to = to.name();
+        e.timeInState = now - stateEntered;
+        e.seqNum = seqNum;
+        e.ackNum = ackNum;
+        e.commit();
+      }
+    }
+    stateEntered = now;
+    stack.resources.stateChanged(from == states.CLOSED ? -1 : from.ordinal(),
+        to == states.CLOSED ? -1 : to.ordinal());
+    if (to == states.ESTABLISHED) {
+      startKeepAlive();
+      endHandshake();
+      if (connectStart != 0)
+        stack.connectTime.recordSince(connectStart);
+      connectStart = 0;
+    }
+    if (to == states.FIN_WAIT_2) {
+      // closed on our side: don't wait forever for a peer that is gone
+      timeWaitTimer = createTimerTask(FIN_WAIT_2_TIMEOUT, TIMEWAIT);
+    }
+    if (to == states.TIME_WAIT) {
+      cancelDataTimers();
+      rtxQueue.clear();
+      startTimeWait();
+    }
+    if (to == states.CLOSED) {
+      handshake = null; // never finished
+      connectStart = 0;
+      if (closeStart != 0)
+        stack.teardownTime.recordSince(closeStart);
+      closeStart = 0;
+      cancelDataTimers();
+      rtxQueue.clear();
+      if (timeWaitTimer != null)
+        timeWaitTimer.cancel();
+      timeWaitTimer = null;
+      releaseTimer();
+      // nothing more goes out, and gaps before out-of-order data stay
+      // gaps: the rings go back to the pool, the receive ring once the
+      // application has read what is left in it
+      sndCount = 0;
+      fileCount = 0;
+      sndFile = null;
+      oooCount = 0;
+      releaseSndRing();
+      releaseRecvRing();
+      // a listener never was a connection (its address may be the
+      // placeholder ServerSocket gives an impl it accepts into)
+      if (address != null && from != states.LISTEN)
+        D.unregisterConnection(address, localport, port, this);
+    }
+  }
+
+  /**
+   * Returns the FSM event a segment is, from its header flags.
+   */
+  private static int event(TCPPacket p) {
+    if (p.rstFlag)
+      return EV_RST;
+    if (p.synFlag)
+      return p.ackFlag ? EV_SYN_ACK : EV_SYN;
+    if (!p.ackFlag)
+      return EV_BARE;
+    return p.finFlag ? EV_FIN : EV_ACK;
+  }
+
+  /**
+   * Sends a segment without data. SYN and FIN segments take up a
+   * sequence number and go on the retransmission queue; pure ACKs do
+   * not.
+   */
+  private void sendpkt(boolean ackFlag, boolean synFlag, boolean finFlag) {
+    TCPPacket pktToSend = controlPacket(seqNum, ackFlag, synFlag, finFlag);
+    if (synFlag || finFlag) {
+      rtxQueue.add(seqNum, 1, (ackFlag ? TCPRetransmitQueue.ACK : 0)
+          | (synFlag ? TCPRetransmitQueue.SYN : 0) | (finFlag ? TCPRetransmitQueue.FIN : 0), -1);
+      if (synFlag)
+        synPending = 1;
+      seqNum++;
+      sndMax = seqNum;
+      if (rtxDeadline == 0)
+        restartRtxTimer();
+    }
+    stack.wrapper.send(pktToSend, route);
+  }
+
+  /**
+   * Sends the SYN held back by a Fast Open connect(), with as much of
+   * the send buffer as fits in one segment. The data goes on the
+   * retransmission queue of its own, after the SYN: a retransmitted SYN
+   * goes without it, and if the server does not take it, it is sent
+   * again once the handshake is done.
+   */
+  private void sendDeferredSyn() {
+    synDeferred = false;
+    TCPPacket syn = controlPacket(seqNum, false, true, false);
+    rtxQueue.add(seqNum, 1, TCPRetransmitQueue.SYN, -1);
+    synPending = 1;
+    seqNum++;
+    int len = Math.min(stack.mss, sndCount - fileCount);
+    if (len > 0) {
+      syn.setData(sndBuf, sndHead, len);
+      rtxQueue.add(seqNum, len, 0, -1);
+      seqNum += len;
+    }
+    sndMax = seqNum;
+    restartRtxTimer();
+    stack.wrapper.send(syn, route);
+    if (len > 0)
+      rtxQueue.setSum(rtxQueue.size() - 1, syn.getRingSum());
+  }
+
+  /**
+   * Returns the connection's one packet for segments without data,
+   * made over with the given header and no options. It is good until
+   * the next call, so each segment must be sent before another is built.
+   */
+  private TCPPacket control(int seq, boolean ackFlag, boolean synFlag, boolean finFlag,
+      int window) {
+    if (ctlPkt == null)
+      ctlPkt = new TCPPacket(localport, port, seq, ackNum, ackFlag, synFlag, finFlag, window,
+          null);
+    else {
+      ctlPkt.reset(seq, ackNum, ackFlag, synFlag, finFlag, window);
+      ctlPkt.sourcePort = localport;
+      ctlPkt.destPort = port;
+    }
+    return ctlPkt;
+  }
+
+  /**
+   * Builds a segment without data, with the options that go with it.
+   */
+  private TCPPacket controlPacket(int seq, boolean ackFlag, boolean synFlag, boolean finFlag) {
+    TCPPacket p = control(seq, ackFlag, synFlag, finFlag, advertiseWindow(synFlag));
+    if (synFlag)
+      synOptions(p, !ackFlag);
+    else {
+      stamp(p);
+      sack(p);
+    }
+    return p;
+  }
+
+  /**
+   * Sends len bytes of the send buffer starting at sequence number seq,
+   * which must all lie in the ring or all in the file mapping (see
+   * contiguous()). The segment is a view of either in one reused
+   * packet, and TCPWrapper writes its header in front of the slices, so
+   * the data is not copied between write() and the wire, nor encoded
+   * again on a retransmission.
+   *
+   * @param sum the data's checksum sum from an earlier send, or -1
+   * @return the data's checksum sum, to keep for a retransmission
+   */
+  private int sendData(int seq, int len, int sum) {
+    if (dataPkt == null)
+      dataPkt = new TCPPacket(localport, port, seq, ackNum, true, false, false, 0, null);
+    dataPkt.seqNum = seq;
+    dataPkt.ackNum = ackNum;
+    dataPkt.windowSize = advertiseWindow(false);
+    int off = seq - sndUna - synPending;
+    int ringCount = sndCount - fileCount;
+    if (off < ringCount)
+      dataPkt.setData(sndBuf, (sndHead + off) % sndSize, len, sum);
+    else
+      dataPkt.setData(sndFile, fileHead + off - ringCount, len, sum);
+    stamp(dataPkt);
+    sack(dataPkt);
+    if (seq - sndMax >= 0) {
+      sndMax = seq + len;
+      stack.wrapper.send(dataPkt, route);
+    }
+    else
+      stack.wrapper.resend(dataPkt, route);
+    return dataPkt.getRingSum();
+  }
+
+  /**
+   * Returns how many queued bytes from sequence number seq on are in
+   * the same place, the ring or the file mapping, so that no segment
+   * spans the two.
+   */
+  private int contiguous(int seq) {
+    int off = seq - sndUna - synPending;
+    int ringCount = sndCount - fileCount;
+    return off < ringCount ? ringCount - off : sndCount - off;
+  }
+
+  /**
+   * Returns the window to put in an outgoing segment, derived from the
+   * free space in the receive buffer. Windows on SYN segments are never
+   * scaled.
+   */
+  private int advertiseWindow(boolean synFlag) {
+    int free = recvSize - recvCount;
+    int shift = synFlag ? 0 : rcvWscale;
+    int wnd = Math.min(free >> shift, 0xffff);
+    lastAdvertised = wnd << shift;
+    return wnd;
+  }
+
+  /**
+   * Puts our options on a SYN. An active open offers everything; a
+   * SYN-ACK only echoes what the peer's SYN offered.
+   */
+  private void synOptions(TCPPacket p, boolean activeOpen) {
+    p.mss = stack.mss;
+    if (activeOpen || windowScaling)
+      p.windowScale = rcvWscale;
+    if (activeOpen || sackOk)
+      p.sackPermitted = true;
+    if (activeOpen || tsOk) {
+      p.hasTimestamp = true;
+      p.tsVal = tcpNow();
+      p.tsEcr = tsRecent;
+    }
+    p.fastOpenCookie = fastOpenCookie;
+  }
+
+  /**
+   * Puts the timestamp option on a segment, if it was negotiated.
+   */
+  private void stamp(TCPPacket p) {
+    if (tsOk) {
+      p.hasTimestamp = true;
+      p.tsVal = tcpNow();
+      p.tsEcr = tsRecent;
+    }
+  }
+
+  /**
+   * Takes the options (or their absence) from the peer's SYN. Window
+   * scaling, SACK and timestamps are only used when both sides sent
+   * them; the MSS option only ever lowers our segment size.
+   */
+  private void negotiate(TCPPacket p) {
+    windowScaling = p.windowScale >= 0;
+    sndWscale = windowScaling ? p.windowScale : 0;
+    if (!windowScaling)
+      rcvWscale = 0;
+    if (p.mss > 0)
+      sndMss = Math.min(stack.mss, p.mss);
+    sackOk = p.sackPermitted;
+    tsOk = p.hasTimestamp;
+    if (tsOk)
+      tsRecent = p.tsVal;
+  }
+
+  /**
+   * Updates the RTT estimate with a sample from an echoed timestamp and
+   * recomputes the retransmission timeout.
+   */
+  private void rttSample(int tsEcr) {
+    long r = tcpNow() - tsEcr;
+    if (r < 0)
+      return;
+    stack.rtt.record(r * 1000); // only to the millisecond
+    if (srtt == 0) {
+      srtt = Math.max(r, 1);
+      rttvar = r / 2;
+    } else {
+      rttvar = (3 * rttvar + Math.abs(srtt - r)) / 4;
+      srtt = (7 * srtt + r) / 8;
+    }
+    rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + Math.max(1, 4 * rttvar)));
+  }
+
+  /**
+   * Millisecond clock for the timestamp option.
+   */
+  private static int tcpNow() {
+    return (int) (System.nanoTime() / 1000000);
+  }
+
+  /**
+   * Called by Demultiplexer when a packet comes in for this connection
+   *
+   * @param p The packet that arrived
+   */
+  public void receivePacket(TCPPacket p) {
+    lock.lock();
+    signal();
+    try {
+      if (keepAlive) {
+        lastHeard = System.currentTimeMillis();
+        keepAliveSent = 0;
+      }
+      if (tsOk && p.hasTimestamp && !p.synFlag) {
+        // PAWS: a timestamp older than the last one we accepted means an
+        // old duplicate from a previous wrap of the sequence space
+        if (p.tsVal - tsRecent < 0) {
+          sendpkt(true, false, false);
+          return;
+        }
+        if (p.seqNum - ackNum <= 0)
+          tsRecent = p.tsVal;
+      }
+      if (predicted(p))
+        return;
+      switch (ACTION[state.ordinal()][event(p)]) {
+        case A_PASSIVE_OPEN:
+          address = p.sourceAddr;
+          port = p.sourcePort;
+          route = stack.routes.passive(address, port);
+          ackNum = p.seqNum + 1;
+          negotiate(p);
+          if (stack.fastOpen.enabled && p.fastOpenCookie != null)
+            fastOpen(p);
+          sndWnd = p.windowSize;
+          D.unregisterListeningSocket(localport, this);
+          D.registerConnection(address, localport, port, this);
+          beginHandshake(false);
+          transition(EV_SYN);
+          sendpkt(true, true, false);
+          break;
+        case A_ACTIVE_OPEN:
+          // acknowledges our SYN, and maybe data that went with it
+          if (p.ackNum - sndUna <= 0 || p.ackNum - sndMax > 0) {
+            // from an old connection, or meant for someone else
+            stack.wrapper.send(TCPPacket.resetFor(p), route);
+            break;
+          }
+          ackNum = p.seqNum + 1;
+          int synSent = sndMax - sndUna - 1;
+          int synData = p.ackNum - sndUna - 1;
+          sndHead = (sndHead + synData) % sndSize;
+          sndCount -= synData;
+          releaseSndRing();
+          sndUna = p.ackNum;
+          synPending = 0;
+          rtxRetries = 0;
+          rtxQueue.trim(sndUna);
+          negotiate(p);
+          if (fastOpenCookie != null)
+            fastOpenAnswered(p, synSent, synData);
+          if (tsOk && p.tsEcr != 0)
+            rttSample(p.tsEcr);
+          sndWnd = p.windowSize;
+          transition(EV_SYN_ACK);
+          // whatever was sent but not acknowledged goes again
+          seqNum = sndUna;
+          sendpkt(true, false, false);
+          if (rtxQueue.isEmpty())
+            stopRtxTimer();
+          else
+            restartRtxTimer();
+          trySend();
+          break;
+        case A_HANDSHAKE:
+          transition(event(p));
+          // the ACK finishing the handshake may carry data or a FIN
+        case A_DATA:
+          processAck(p);
+          int seg = processData(p);
+          if (sndUna == seqNum)
+            transition(EV_FIN_ACKED);
+          if (seg == SEG_FIN)
+            transition(EV_FIN_IN);
+          if (seg != SEG_NONE)
+            sendpkt(true, false, false);
+          break;
+        case A_TIME_WAIT:
+          sendpkt(true, false, false);
+          startTimeWait();
+          break;
+        case A_RESET:
+          reset(p);
+          break;
+        default:
+      }
+
+    } catch (IOException e) {
+      System.out.println(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Header prediction (Van Jacobson; RFC 1323, appendix): in
+   * ESTABLISHED, nearly every segment of a bulk transfer is either the
+   * next one in sequence, carrying data and acknowledging nothing new,
+   * or a pure ACK for new data, with the same window as before. Such a
+   * segment is handled here, without the state machine, processAck()
+   * or processData().
+   *
+   * Anything else (flags other than ACK, a changed window, SACK blocks,
+   * out-of-order data held, a retransmission in progress, the persist
+   * timer running) takes the full path.
+   *
+   * @return true if p was handled
+   */
+  private boolean predicted(TCPPacket p) {
+    if (state != states.ESTABLISHED || !p.ackFlag || p.synFlag || p.finFlag || p.rstFlag
+        || p.seqNum != ackNum || (p.windowSize << sndWscale) != sndWnd || p.sackCount != 0
+        || seqNum != sndMax || oooCount != 0 || finPending || persistTimer != null)
+      return false;
+    int len = p.dataLength;
+    if (len == 0) {
+      // a pure ACK for data in flight
+      int acked = p.ackNum - sndUna;
+      if (acked <= 0 || p.ackNum - sndMax > 0)
+        return false;
+      acknowledge(p, acked);
+      trySend();
+      return true;
+    }
+    // the next data, acknowledging nothing new, all of it fitting
+    if (p.ackNum != sndUna || len > recvSize - recvCount)
+      return false;
+    byte[] ring = recvRing();
+    int pos = (recvHead + recvCount) % recvSize;
+    int first = Math.min(len, recvSize - pos);
+    System.arraycopy(p.data, p.dataOffset, ring, pos, first);
+    System.arraycopy(p.data, p.dataOffset + first, ring, 0, len - first);
+    recvCount += len;
+    ackNum += len;
+    sendpkt(true, false, false);
+    return true;
+  }
+
+  /**
+   * Server side of Fast Open, for a SYN carrying the option. With a good
+   * cookie the SYN's data is taken at once and the connection is ready
+   * for accept(); otherwise the SYN-ACK takes a cookie back for next
+   * time.
+   */
+  private void fastOpen(TCPPacket p) {
+    if (p.fastOpenCookie.length > 0 && stack.fastOpen.valid(p.fastOpenCookie, p.sourceAddr)) {
+      fastOpened = true;
+      int n = Math.min(p.dataLength, recvSize);
+      if (n > 0) {
+        System.arraycopy(p.data, p.dataOffset, recvRing(), recvHead, n);
+        advanceRcvNxt(ackNum + n);
+      }
+    } else
+      fastOpenCookie = stack.fastOpen.cookie(p.sourceAddr);
+  }
+
+  /**
+   * Client side of Fast Open, on the SYN-ACK: caches the cookie the
+   * server sent, or forgets ours if the server took none of the data
+   * that went with it (unless that SYN was lost).
+   *
+   * @param sent  bytes of data sent on the SYN
+   * @param taken bytes of it the SYN-ACK acknowledged
+   */
+  private void fastOpenAnswered(TCPPacket p, int sent, int taken) {
+    if (p.fastOpenCookie != null && p.fastOpenCookie.length > 0)
+      stack.fastOpen.remember(address, port, p.fastOpenCookie);
+    else if (sent > 0 && taken == 0 && !synResent)
+      stack.fastOpen.forget(address, port);
+    fastOpenCookie = null;
+  }
+
+  /**
+   * Handles a RST. In SYN_SENT it must acknowledge our SYN. Otherwise
+   * only one carrying exactly the sequence number we expect resets the
+   * connection; one elsewhere in the window gets a challenge ACK, so a
+   * blind attacker has to guess it exactly (RFC 5961), and the rest are
+   * dropped.
+   */
+  private void reset(TCPPacket p) throws IOException {
+    states s = state;
+    if (s == states.SYN_SENT) {
+      if (!p.ackFlag || p.ackNum - sndUna <= 0 || p.ackNum - sndMax > 0)
+        return;
+      abort(new ConnectException("Connection refused"), EV_RST);
+      return;
+    }
+    if (p.seqNum != ackNum) {
+      if (p.seqNum - ackNum > 0 && p.seqNum - ackNum < Math.max(lastAdvertised, 1))
+        sendpkt(true, false, false);
+      return;
+    }
+    if (s == states.SYN_RCVD && !fastOpened) {
+      // nobody has seen this connection yet: wait for the next one
+      cancelDataTimers();
+      rtxQueue.clear();
+      D.unregisterConnection(address, localport, port, this);
+      address = null;
+      port = 0;
+      route = null;
+      synPending = 0;
+      fastOpenCookie = null;
+      rtxRetries = 0;
+      transition(EV_RST);
+      D.registerListeningSocket(localport, this);
+      seqNum = 10;
+      sndUna = 10;
+      sndMax = 10;
+      ackNum = 10;
+      return;
+    }
+    abort(new SocketException("Connection reset"), EV_RST);
+  }
+
+  /**
+   * Ends the connection at once, whatever its state, with nothing more
+   * sent. Blocked and later calls fail with e, once data already
+   * received has been read.
+   */
+  private void abort(IOException e) throws IOException {
+    abort(e, EV_ABORT);
+  }
+
+  /**
+   * Same, through the given event (EV_RST for a reset).
+   */
+  private void abort(IOException e, int event) throws IOException {
+    error = e;
+    if (stack.traceStates)
+      System.out.println("!!! " + state + " aborted: " + e.getMessage());
+    transition(event);
+    signal();
+  }
+
+  /**
+   * Handles the acknowledgment and window fields of an incoming segment:
+   * frees acknowledged data, restarts or stops the retransmission timer
+   * and sends whatever the new window allows.
+   */
+  private void processAck(TCPPacket p) {
+    if (!p.ackFlag || p.synFlag)
+      return;
+    int acked = p.ackNum - sndUna;
+    if (acked < 0 || p.ackNum - sndMax > 0)
+      return; // old, or acknowledges something we never sent
+    if (acked > 0)
+      acknowledge(p, acked);
+    if (sackOk)
+      for (int i = 0; i < p.sackCount; i++)
+        rtxQueue.sack(p.sackBlocks[2 * i], p.sackBlocks[2 * i + 1]);
+    sndWnd = p.windowSize << sndWscale;
+    if (sndWnd > 0 && persistTimer != null) {
+      persistTimer.cancel();
+      persistTimer = null;
+      persistBackoff = rto;
+    }
+    trySend();
+  }
+
+  /**
+   * Frees the acked bytes of sequence space that p newly acknowledges
+   * (our SYN, data, or both), takes an RTT sample and restarts or stops
+   * the retransmission timer.
+   */
+  private void acknowledge(TCPPacket p, int acked) {
+    int dataAcked = Math.min(acked - synPending, sndCount);
+    synPending = 0;
+    int ringAcked = Math.min(dataAcked, sndCount - fileCount);
+    sndHead = (sndHead + ringAcked) % sndSize;
+    fileHead += dataAcked - ringAcked;
+    fileCount -= dataAcked - ringAcked;
+    if (fileCount == 0)
+      sndFile = null; // all acknowledged, let the mapping go
+    sndCount -= dataAcked;
+    releaseSndRing();
+    sndUna = p.ackNum;
+    rtxRetries = 0;
+    if (seqNum - sndUna < 0)
+      seqNum = sndUna; // a segment sent before the timeout got through
+    if (tsOk && p.hasTimestamp && p.tsEcr != 0)
+      rttSample(p.tsEcr);
+    rtxQueue.trim(sndUna);
+    if (rtxQueue.isEmpty())
+      stopRtxTimer();
+    else
+      restartRtxTimer();
+  }
+
+  /**
+   * Handles the data and FIN of an incoming segment. Whatever fits in
+   * the receive window is stored in the ring; data past a gap is kept
+   * there until the gap fills, and is then handed to the reader along
+   * with it. Every segment carrying data or a FIN is acknowledged.
+   *
+   * @return SEG_NONE, SEG_ACK or SEG_FIN
+   */
+  private int processData(TCPPacket p) {
+    int len = p.dataLength;
+    if (p.synFlag)
+      return SEG_ACK; // retransmitted SYN-ACK: our ACK was lost
+    if (len == 0 && !p.finFlag) // a pure ACK, or a zero window probe
+      return p.seqNum - ackNum < 0 ? SEG_ACK : SEG_NONE;
+    if (finReceived)
+      return SEG_ACK;
+
+    // skip what we already have, keep what fits in the window
+    int skip = Math.max(0, ackNum - p.seqNum);
+    if (len > skip) {
+      int off = p.seqNum + skip - ackNum;
+      int n = Math.min(len - skip, recvSize - recvCount - off);
+      if (n > 0) {
+        byte[] ring = recvRing();
+        int pos = (recvHead + recvCount + off) % recvSize;
+        int first = Math.min(n, recvSize - pos);
+        System.arraycopy(p.data, p.dataOffset + skip, ring, pos, first);
+        System.arraycopy(p.data, p.dataOffset + skip + first, ring, 0, n - first);
+        if (off == 0)
+          advanceRcvNxt(ackNum + n);
+        else
+          addOutOfOrder(ackNum + off, ackNum + off + n);
+      }
+    }
+    if (p.finFlag) {
+      finPending = true;
+      finSeq = p.seqNum + len;
+    }
+    if (finPending && ackNum == finSeq) {
+      ackNum++;
+      finReceived = true;
+      finPending = false;
+      return SEG_FIN;
+    }
+    return SEG_ACK;
+  }
+
+  /**
+   * Moves rcv_nxt up to end, then on through any out-of-order ranges
+   * that are now contiguous, making all of it readable.
+   */
+  private void advanceRcvNxt(int end) {
+    recvCount += end - ackNum;
+    ackNum = end;
+    while (oooCount > 0 && oooStart[0] - ackNum <= 0) {
+      if (oooEnd[0] - ackNum > 0) {
+        recvCount += oooEnd[0] - ackNum;
+        ackNum = oooEnd[0];
+      }
+      removeOutOfOrder(0);
+    }
+  }
+
+  /**
+   * Records that [start, end) is now in the ring, merging it with the
+   * ranges it touches. If the table is full a new disjoint range is
+   * forgotten; its data is simply sent again.
+   */
+  private void addOutOfOrder(int start, int end) {
+    int i = 0;
+    while (i < oooCount && oooEnd[i] - start < 0)
+      i++;
+    // i is the first range that ends at or after start
+    if (i == oooCount || end - oooStart[i] < 0) {
+      if (oooStart == null) {
+        oooStart = new int[MAX_OOO];
+        oooEnd = new int[MAX_OOO];
+      }
+      if (oooCount == MAX_OOO)
+        return;
+      System.arraycopy(oooStart, i, oooStart, i + 1, oooCount - i);
+      System.arraycopy(oooEnd, i, oooEnd, i + 1, oooCount - i);
+      oooStart[i] = start;
+      oooEnd[i] = end;
+      oooCount++;
+    } else {
+      if (start - oooStart[i] < 0)
+        oooStart[i] = start;
+      if (end - oooEnd[i] > 0)
+        oooEnd[i] = end;
+      // swallow the ranges the grown one now reaches
+      while (i + 1 < oooCount && oooEnd[i] - oooStart[i + 1] >= 0) {
+        if (oooEnd[i + 1] - oooEnd[i] > 0)
+          oooEnd[i] = oooEnd[i + 1];
+        removeOutOfOrder(i + 1);
+      }
+    }
+    oooLatest = oooStart[i];
+  }
+
+  private void removeOutOfOrder(int i) {
+    System.arraycopy(oooStart, i + 1, oooStart, i, oooCount - i - 1);
+    System.arraycopy(oooEnd, i + 1, oooEnd, i, oooCount - i - 1);
+    oooCount--;
+  }
+
+  /**
+   * Puts SACK blocks for the out-of-order ranges on an ACK, if SACK was
+   * negotiated: the range that last grew first, then the others in
+   * sequence order (RFC 2018).
+   */
+  private void sack(TCPPacket p) {
+    if (!sackOk || oooCount == 0) {
+      p.sackCount = 0;
+      return;
+    }
+    if (sackOut == null)
+      sackOut = new int[2 * TCPOptions.MAX_SACK_BLOCKS];
+    int n = 0;
+    for (int i = 0; i < oooCount && n < TCPOptions.MAX_SACK_BLOCKS; i++) {
+      if (oooStart[i] == oooLatest) {
+        sackOut[0] = oooStart[i];
+        sackOut[1] = oooEnd[i];
+        n = 1;
+      }
+    }
+    for (int i = 0; i < oooCount && n < TCPOptions.MAX_SACK_BLOCKS; i++) {
+      if (oooStart[i] != oooLatest) {
+        sackOut[2 * n] = oooStart[i];
+        sackOut[2 * n + 1] = oooEnd[i];
+        n++;
+      }
+    }
+    p.sackBlocks = sackOut;
+    p.sackCount = n;
+  }
+
+  /**
+   * Sends as much unsent data as the peer's window allows. This is the
+   * segmentation stage: one pass over the send ring, cutting it into
+   * segments of up to sndMss bytes. If the window is closed with
+   * nothing in flight, the persist timer is started so that a lost
+   * window update cannot stall the connection.
+   *
+   * After a retransmission timeout seqNum is behind sndMax, and the
+   * segments between them are sent again first, as they were queued,
+   * except those the peer has SACKed.
+   *
+   * Unless TCP_NODELAY is set, a segment shorter than sndMss waits
+   * while data is unacknowledged (Nagle, RFC 896), so that small writes
+   * go out together instead of a packet each. Our SYN in flight does
+   * not count, so a Fast Open response is not held up.
+   */
+  private void trySend() {
+    if (synDeferred) {
+      sendDeferredSyn();
+      return;
+    }
+    if (!canSend())
+      return;
+    while (seqNum - sndMax < 0) {
+      int i = rtxQueue.find(seqNum);
+      if (i < 0) {
+        seqNum = sndMax; // already acknowledged
+        break;
+      }
+      if (!rtxQueue.sacked(i)) {
+        if (rtxQueue.len(i) > sndWnd - (seqNum - sndUna) && seqNum != sndUna)
+          return;
+        retransmit(i);
+      }
+      seqNum = rtxQueue.end(i);
+    }
+    while (true) {
+      int inFlight = seqNum - sndUna;
+      int unsent = sndCount - (inFlight - synPending);
+      if (unsent <= 0)
+        return;
+      int usable = sndWnd - inFlight;
+      if (usable <= 0) {
+        if (inFlight == 0 && persistTimer == null)
+          persistTimer = createTimerTask(persistBackoff, PERSIST);
+        return;
+      }
+      int len = Math.min(sndMss, Math.min(unsent, usable));
+      if (len < sndMss && len < unsent && inFlight > 0)
+        return; // sender side silly window avoidance: wait for the window to open
+      if (len < sndMss && !noDelay && inFlight - synPending > 0)
+        return; // Nagle: one small segment in flight at a time
+      len = Math.min(len, contiguous(seqNum));
+      rtxQueue.add(seqNum, len, TCPRetransmitQueue.ACK, -1);
+      rtxQueue.setSum(rtxQueue.size() - 1, sendData(seqNum, len, -1));
+      seqNum += len;
+      if (rtxDeadline == 0)
+        restartRtxTimer();
+    }
+  }
+
+  /**
+   * Sends entry i of the retransmission queue again: a data segment from
+   * the send buffer, or a SYN or FIN built anew.
+   */
+  private void retransmit(int i) {
+    int flags = rtxQueue.flags(i);
+    if ((flags & TCPRetransmitQueue.SYN) != 0)
+      synResent = true;
+    if ((flags & (TCPRetransmitQueue.SYN | TCPRetransmitQueue.FIN)) != 0)
+      stack.wrapper.resend(controlPacket(rtxQueue.seq(i), (flags & TCPRetransmitQueue.ACK) != 0,
+          (flags & TCPRetransmitQueue.SYN) != 0, (flags & TCPRetransmitQueue.FIN) != 0), route);
+    else
+      rtxQueue.setSum(i, sendData(rtxQueue.seq(i), rtxQueue.len(i), rtxQueue.sum(i)));
+  }
+
+  /**
+   * The retransmission timer went off: go back to the oldest
+   * unacknowledged segment and send it again. The ACK for it clocks out
+   * the rest of the queue again through trySend(). After MAX_RETRIES
+   * timeouts in a row (MAX_SYN_RETRIES for a SYN) the peer is taken
+   * to be gone and the connection is aborted.
+   */
+  private void retransmitTimeout() throws IOException {
+    if (rtxQueue.isEmpty())
+      return;
+    int i = 0;
+    while (i < rtxQueue.size() - 1 && rtxQueue.sacked(i))
+      i++;
+    boolean giveUp = ++rtxRetries > (synPending == 1 ? MAX_SYN_RETRIES : MAX_RETRIES);
+    if (TCPEvents.retransmitTimeoutEnabled) {
+      TCPEvents.RetransmitTimeout e = new TCPEvents.RetransmitTimeout();
+      if (e.shouldCommit()) {
+        e.connection(localport, address, port);
+        e.seqNum = rtxQueue.seq(i);
+        e.length = rtxQueue.len(i);
+        e.retries = rtxRetries;
+        e.rto = rto;
+        e.aborted = giveUp;
+        e.commit();
+      }
+    }
+    if (giveUp) {
+      if (state == states.SYN_SENT)
+        abort(new ConnectException("Connection timed out"));
+      else
+        abort(new SocketException("Connection timed out"));
+      return;
+    }
+    seqNum = rtxQueue.seq(i);
+    retransmit(i);
+    seqNum = rtxQueue.end(i);
+    // back off until a new RTT sample brings the timeout down again
+    rto = Math.min(rto * 2, MAX_RTO);
+    restartRtxTimer();
+  }
+
+  /**
+   * (Re)starts the retransmission timer, due rto from now. The task
+   * already scheduled is kept if it goes off no later than that; it
+   * then finds the deadline moved and waits out the rest.
+   */
+  private void restartRtxTimer() {
+    rtxDeadline = System.currentTimeMillis() + rto;
+    if (rtxTimer != null && rtxTimerAt > rtxDeadline) {
+      rtxTimer.cancel();
+      rtxTimer = null;
+    }
+    if (rtxTimer == null) {
+      rtxTimer = createTimerTask(rto, RETRANSMIT);
+      rtxTimerAt = rtxDeadline;
+    }
+  }
 
-  // track timers and pkts by state for retransmission
-  private Hashtable<states, TCPTimerTask> timers = new Hashtable<states, TCPTimerTask>();
-  private Hashtable<states, TCPPacket> packets = new Hashtable<states, TCPPacket>();
+  private void stopRtxTimer() {
+    rtxDeadline = 0;
+  }
 
-  StudentSocketImpl(Demultiplexer D) { // default constructor
-    this.D = D;
+  private void startTimeWait() {
+    if (timeWaitTimer != null)
+      timeWaitTimer.cancel();
+    timeWaitTimer = createTimerTask(30 * 1000, TIMEWAIT);
   }
 
   /**
-   * Connects this socket to the specified port number on the specified host.
-   *
-   * @param address the IP address of the remote host.
-   * @param port    the port number.
-   * @exception IOException if an I/O error occurs when attempting a connection.
+   * Sends a window update if reading has opened a window that was
+   * advertised as (nearly) closed.
    */
-  public synchronized void connect(InetAddress address, int port) throws IOException {
-    localport = D.getNextAvailablePort();
-    this.address = address;
-    this.port = port;
-    seqNum = 0;
-    ackNum = 0;
-    D.registerConnection(address, localport, port, this);
-    TCPWrapper.setUDPPortNumber(port);
-    changeState(states.SYN_SENT);
-    sendpkt(false, true, false);
-    while (currState != states.ESTABLISHED) {
-      try {
-        wait(50);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
+  private void windowOpened() {
+    int free = recvSize - recvCount;
+    int mss = stack.mss;
+    states s = state;
+    if (lastAdvertised < mss && (free >= mss || free >= recvSize / 2)
+        && (s == states.ESTABLISHED || s == states.FIN_WAIT_1 || s == states.FIN_WAIT_2))
+      sendpkt(true, false, false);
   }
 
   /**
-   * Changes state and handles the final socket closing
-   * 
-   * @param newState an enum representing state in the TCP FSM
-   * @throws IOException if unregistering the socket goes awry
+   * Returns true in the states where the application may send data.
    */
-  private synchronized void changeState(states newState) throws IOException {
-    TCPTimerTask currTimer;
-    TCPTimerTask FinWaitTimer = null;
-    currTimer = timers.get(currState);
-    if(currState == states.CLOSING)
-      FinWaitTimer = timers.get(states.FIN_WAIT_1);
-    if (currTimer != null && newState != states.CLOSING){
-      currTimer.cancel();
-      timers.remove(currState, currTimer); 
-    } if (currState == states.CLOSING && FinWaitTimer != null){
-      FinWaitTimer.cancel();
-      timers.remove(states.FIN_WAIT_1, FinWaitTimer);
-
-    }
-    System.out.println("!!! " + currState + " -> " + newState);
-    currState = newState;
-    if (newState == states.TIME_WAIT) 
-      timers.put(currState, createTimerTask(30000, new Object()));
-    if (newState == states.CLOSED)
-      D.unregisterConnection(address, localport, port, this);
-
+  private boolean canSend() {
+    states s = state;
+    return s == states.ESTABLISHED || s == states.CLOSE_WAIT || (s == states.SYN_RCVD && fastOpened);
   }
 
-  private synchronized void sendpkt(boolean ackFlag, boolean synFlag, boolean finFlag) {
-    TCPPacket pktToSend;
-    if (ackFlag && !synFlag) {
-      pktToSend = new TCPPacket(localport, port, -2, ackNum, ackFlag, synFlag, finFlag, 50, null);
-      TCPWrapper.send(pktToSend, address);
-    } else {
-      pktToSend = new TCPPacket(localport, port, seqNum, ackNum, ackFlag, synFlag, finFlag, 50, null);
-      timers.put(currState, createTimerTask(2500, new Object()));
-      TCPWrapper.send(pktToSend, address);
-    }   
-    packets.put(currState, pktToSend);
+  private void cancelDataTimers() {
+    if (rtxTimer != null)
+      rtxTimer.cancel();
+    if (persistTimer != null)
+      persistTimer.cancel();
+    if (keepAliveTimer != null)
+      keepAliveTimer.cancel();
+    rtxTimer = null;
+    rtxDeadline = 0;
+    persistTimer = null;
+    keepAliveTimer = null;
   }
 
   /**
-   * Called by Demultiplexer when a packet comes in for this connection
-   * 
-   * @param p The packet that arrived
+   * Called on a ServerSocket's impl once it is bound: SYNs for its port
+   * are held off rather than refused from now on, even between
+   * accept() calls, until it is closed.
+   *
+   * @exception BindException if another server has the port, or, with
+   *                          SO_REUSEADDR off, connections still use it
    */
-  public synchronized void receivePacket(TCPPacket p) {
-    this.notifyAll();
-    if((p.finFlag || p.synFlag) && !p.ackFlag){
-      ackNum = p.seqNum;
-      seqNum = p.ackNum + 1;
-    }
+  protected void listen(int backlog) throws IOException {
+    lock.lock();
     try {
-      switch (currState) {
-        case LISTEN:
-          address = p.sourceAddr;
-          port = p.sourcePort;
-          D.unregisterListeningSocket(localport, this);
-          D.registerConnection(address, localport, port, this);
-          changeState(states.SYN_RCVD);
-          sendpkt(true, true, false);
-          break;
-        case SYN_SENT:
-        
-          changeState(states.ESTABLISHED);
-          sendpkt(true, false, false);
-          break;
-        case SYN_RCVD:
-          if(p.ackFlag){
-            changeState(states.ESTABLISHED);
-          }
-          else if (p.finFlag){
-            changeState(states.ESTABLISHED);
-            changeState(states.CLOSE_WAIT);
-            sendpkt(true, false, false);
-          }
-          break;
-        case ESTABLISHED:
-          if (p.finFlag) {
-            changeState(states.CLOSE_WAIT);
-            sendpkt(true, false, false);
-          } else if (p.synFlag && p.ackFlag){
-            sendpkt(true, false, false);
-          }
-          
-          break;
-        case FIN_WAIT_1:
-          if (p.finFlag) {
-            changeState(states.CLOSING);
-            sendpkt(true, false, false);
-          } else if (p.ackFlag && !p.synFlag) {
-            
-            changeState(states.FIN_WAIT_2);
-          } else if (p.ackFlag && p.synFlag) {
-            sendpkt(true, false, false);
-          }
-          
-          break;
-        case CLOSING:
-          if(p.ackFlag){
-            changeState(states.TIME_WAIT);
-          }
-          else if(p.finFlag){
-            sendpkt(true, false, false);
-          }
-          
-          break;
-        case LAST_ACK:
-          if(p.finFlag) {
-            sendpkt(true, false, false);
-          } else if (p.ackFlag) {
-            changeState(states.TIME_WAIT);
-          }
-          
-          break;
-        case FIN_WAIT_2:
-          changeState(states.TIME_WAIT);
-          sendpkt(true, false, false);
-          
-          break;
-        case TIME_WAIT:
-          if(p.finFlag){
-          sendpkt(true, false, false);
-          
-          timers.replace(currState, createTimerTask(30*1000, new Object()));}
-          if(p.ackFlag){
-            sendpkt(true, false, false);
-            timers.replace(currState, createTimerTask(30*1000, new Object()));
-          }
-
-          
-          default:
-      }
+      if (!serving)
+        D.registerServerPort(localport, reuseAddress);
+      serving = true;
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    } catch (IOException e) {
-      System.out.println(e);
+  /**
+   * Accepts a connection on this (ServerSocket's) impl into s, which
+   * takes on our buffer sizes, TCP_NODELAY, SO_KEEPALIVE and SO_LINGER.
+   * With SO_TIMEOUT set, gives up if no connection arrives in time.
+   *
+   * @exception SocketTimeoutException if the timeout expires first.
+   */
+  protected void accept(SocketImpl s) throws IOException {
+    StudentSocketImpl c = (StudentSocketImpl) s;
+    int timeout;
+    lock.lock();
+    try {
+      c.recvSize = recvSize;
+      c.chooseWindowScale();
+      c.sndSize = sndSize;
+      c.noDelay = noDelay;
+      c.keepAlive = keepAlive;
+      c.lingerTime = lingerTime;
+      timeout = soTimeout;
+    } finally {
+      lock.unlock();
     }
+    long start = System.nanoTime();
+    c.listenForConnection(localport);
+    c.awaitEstablished(timeout);
+    stack.acceptWait.recordSince(start);
   }
 
   /**
@@ -204,17 +1575,27 @@ class StudentSocketImpl extends BaseSocketImpl {
    * listening ServerSocket. Note that localport is already set prior to this
    * being called.
    */
-  public synchronized void acceptConnection() throws IOException {
-    D.registerListeningSocket(localport, this);
-    changeState(states.LISTEN);
-    seqNum = 10;
-    ackNum = 10;
-    while (currState != states.ESTABLISHED && currState != states.CLOSE_WAIT) {
-      try {
-        wait(50);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+  public void acceptConnection() throws IOException {
+    listenForConnection(localport);
+    awaitEstablished();
+  }
+
+  /**
+   * Starts listening for one connection on the given port, without
+   * waiting for it to arrive.
+   */
+  void listenForConnection(int localport) throws IOException {
+    lock.lock();
+    try {
+      this.localport = localport;
+      D.registerListeningSocket(localport, this);
+      transition(EV_LISTEN);
+      seqNum = 10;
+      sndUna = 10;
+      sndMax = 10;
+      ackNum = 10;
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -227,9 +1608,7 @@ class StudentSocketImpl extends BaseSocketImpl {
    * @exception IOException if an I/O error occurs when creating the input stream.
    */
   public InputStream getInputStream() throws IOException {
-    // project 4 return appIS;
-    return null;
-
+    return appIS;
   }
 
   /**
@@ -242,59 +1621,648 @@ class StudentSocketImpl extends BaseSocketImpl {
    *                        stream.
    */
   public OutputStream getOutputStream() throws IOException {
-    // project 4 return appOS;
-    return null;
+    return appOS;
   }
 
   /**
-   * Closes this socket.
+   * Closes this socket. The FIN is sent once all buffered data has been
+   * acknowledged, so that data retransmission never has to go past it.
+   *
+   * With SO_LINGER on, waiting for that takes at most the linger time;
+   * if data is still unacknowledged then, or the linger time is 0, the
+   * connection is reset instead, dropping what is buffered and skipping
+   * TIME_WAIT.
    *
    * @exception IOException if an I/O error occurs when closing this socket.
    */
-  public synchronized void close() throws IOException {
-    if (currState == states.CLOSE_WAIT)
-      changeState(states.LAST_ACK);
-    else if (currState != states.CLOSED && address != null){
-      changeState(states.FIN_WAIT_1);
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      states s = state;
+      if (closeStart == 0 && s != states.CLOSED && s != states.LISTEN)
+        closeStart = System.nanoTime();
+      if (serving) {
+        serving = false;
+        D.unregisterServerPort(localport);
+      }
+      if (state == states.LISTEN) {
+        // nobody connected
+        D.unregisterListeningSocket(localport, this);
+        transition(EV_CLOSE);
+        signal();
+        return;
+      }
+      long deadline = lingerTime > 0 ? System.currentTimeMillis() + lingerTime * 1000L : 0;
+      // data written on a Fast Open connection waits for the handshake
+      while ((canSend() || (state == states.SYN_SENT && !synDeferred)) && sndCount > 0
+          && lingerTime != 0) {
+        if (deadline != 0 && System.currentTimeMillis() >= deadline)
+          break;
+        try {
+          changed.await(50, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("close interrupted");
+        }
+      }
+      if (lingerTime == 0 || (deadline != 0 && sndCount > 0 && state != states.CLOSED)) {
+        resetConnection();
+        return;
+      }
+      // a connection still waiting for its SYN-ACK just goes away
+      if (transition(EV_CLOSE) && state != states.CLOSED)
+        sendpkt(true, false, true);
+    } finally {
+      lock.unlock();
     }
-    else
+  }
+
+  /**
+   * Abortive close: tells the peer with a RST, unless it has not heard
+   * of us yet, and goes straight to CLOSED.
+   */
+  private void resetConnection() throws IOException {
+    states s = state;
+    if (s == states.CLOSED)
+      return;
+    if (s != states.LISTEN && s != states.SYN_SENT && s != states.TIME_WAIT) {
+      TCPPacket rst = control(sndMax, true, false, false, 0);
+      rst.rstFlag = true;
+      stack.wrapper.send(rst, route);
+    }
+    if (s == states.LISTEN)
+      D.unregisterListeningSocket(localport, this);
+    abort(new SocketException("Socket closed"));
+  }
+
+  /**
+   * Sets a socket option: SO_SNDBUF, SO_RCVBUF, TCP_NODELAY,
+   * SO_TIMEOUT, SO_LINGER, SO_KEEPALIVE or SO_REUSEADDR.
+   *
+   * @exception SocketException if the option is not one of these
+   */
+  public void setOption(int optID, Object value) throws SocketException {
+    lock.lock();
+    try {
+      switch (optID) {
+        case SO_SNDBUF:
+          resizeSendBuffer((Integer) value);
+          break;
+        case SO_RCVBUF:
+          resizeRecvBuffer((Integer) value);
+          break;
+        case TCP_NODELAY:
+          noDelay = (Boolean) value;
+          if (noDelay)
+            trySend();
+          break;
+        case SO_TIMEOUT:
+          soTimeout = (Integer) value;
+          break;
+        case SO_LINGER:
+          // an Integer number of seconds, or Boolean.FALSE for off
+          lingerTime = value instanceof Integer ? (Integer) value : -1;
+          break;
+        case SO_KEEPALIVE:
+          keepAlive = (Boolean) value;
+          if (keepAlive)
+            startKeepAlive();
+          else if (keepAliveTimer != null) {
+            keepAliveTimer.cancel();
+            keepAliveTimer = null;
+          }
+          break;
+        case SO_REUSEADDR:
+          reuseAddress = (Boolean) value;
+          break;
+        default:
+          super.setOption(optID, value);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a socket option set with setOption(), or its default.
+   *
+   * @exception SocketException if the option is not supported
+   */
+  public Object getOption(int optID) throws SocketException {
+    lock.lock();
+    try {
+      switch (optID) {
+        case SO_SNDBUF:
+          return sndSize;
+        case SO_RCVBUF:
+          return recvSize;
+        case TCP_NODELAY:
+          return noDelay;
+        case SO_TIMEOUT:
+          return soTimeout;
+        case SO_LINGER:
+          return lingerTime < 0 ? (Object) Boolean.FALSE : (Object) lingerTime;
+        case SO_KEEPALIVE:
+          return keepAlive;
+        case SO_REUSEADDR:
+          return reuseAddress;
+        default:
+          return super.getOption(optID);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gives the send ring a new size, keeping what it holds. It never
+   * gets smaller than that.
+   */
+  private void resizeSendBuffer(int size) {
+    int ringCount = sndCount - fileCount;
+    size = Math.max(size, ringCount);
+    if (size == sndSize)
+      return;
+    sndSize = size;
+    if (sndBuf != null) {
+      ByteBuffer b = stack.buffers.takeSend(size);
+      int first = Math.min(ringCount, sndBuf.capacity() - sndHead);
+      b.put(0, sndBuf, sndHead, first);
+      b.put(first, sndBuf, 0, ringCount - first);
+      stack.buffers.giveSend(sndBuf);
+      sndBuf = b;
+      sndHead = 0;
+      dataPkt = null;
+    }
+    signal(); // room for writers, maybe
+  }
+
+  /**
+   * Gives the receive ring a new size. Before the SYN it may be any
+   * size and sets the window scale we offer; after, it can only grow,
+   * since a window once advertised must not shrink, and windows past
+   * what the scale can express are not advertised.
+   */
+  private void resizeRecvBuffer(int size) {
+    states s = state;
+    if ((s == states.CLOSED || s == states.LISTEN) && recvBuf == null) {
+      recvSize = size;
+      chooseWindowScale();
       return;
-    sendpkt(false, false, true);
+    }
+    if (size <= recvSize)
+      return;
+    recvSize = size;
+    if (recvBuf != null) {
+      // out-of-order data sits past the readable bytes, so the whole
+      // ring moves, in order from recvHead
+      byte[] b = stack.buffers.takeRecv(size);
+      int first = recvBuf.length - recvHead;
+      System.arraycopy(recvBuf, recvHead, b, 0, first);
+      System.arraycopy(recvBuf, 0, b, first, recvHead);
+      stack.buffers.giveRecv(recvBuf);
+      recvBuf = b;
+      recvHead = 0;
+    }
+    windowOpened();
   }
 
   /**
    * create TCPTimerTask instance, handling tcpTimer creation
-   * 
+   *
    * @param delay time in milliseconds before call
    * @param ref   generic reference to be returned to handleTimer
    */
   private TCPTimerTask createTimerTask(long delay, Object ref) {
     if (tcpTimer == null)
-      tcpTimer = new Timer(false);
-    return new TCPTimerTask(tcpTimer, delay, this, ref);
+      tcpTimer = stack.acquireTimer();
+    return new TCPTimerTask(tcpTimer, delay, this, ref, stack.resources.timers);
+  }
+
+  /**
+   * Gives up this connection's use of the stack's timer.
+   */
+  private void releaseTimer() {
+    if (tcpTimer == null)
+      return;
+    tcpTimer = null;
+    stack.releaseTimer();
   }
 
   /**
    * handle timer expiration (called by TCPTimerTask)
-   * 
+   *
    * @param ref Generic reference that can be used by the timer to return
    *            information.
    */
-  public synchronized void handleTimer(Object ref) {
-    // this must run only once the last timer (30 second timer) has expired
-    if (currState == states.TIME_WAIT) {
-      tcpTimer.cancel();
-      tcpTimer = null;
+  public void handleTimer(Object ref) {
+    lock.lock();
+    try {
+      signal();
+      if (ref == RETRANSMIT) {
+        rtxTimer = null;
+        long now = System.currentTimeMillis();
+        if (rtxDeadline == 0)
+          return; // stopped since it was scheduled
+        if (now < rtxDeadline) {
+          // restarted since it was scheduled
+          rtxTimer = createTimerTask(rtxDeadline - now, RETRANSMIT);
+          rtxTimerAt = rtxDeadline;
+        }
+        else
+          retransmitTimeout();
+      }
+      else if (ref == PERSIST) {
+        persistTimer = null;
+        if (sndWnd == 0 && sndCount > seqNum - sndUna) {
+          sendProbe();
+          persistBackoff = Math.min(persistBackoff * 2, MAX_PERSIST);
+          persistTimer = createTimerTask(persistBackoff, PERSIST);
+        }
+        else
+          trySend();
+      }
+      // this must run only once the last timer (30 second timer) has expired
+      else if (ref == TIMEWAIT && state == states.TIME_WAIT) {
+        timeWaitTimer = null;
+        transition(EV_TIMEOUT);
+      }
+      else if (ref == TIMEWAIT && state == states.FIN_WAIT_2) {
+        timeWaitTimer = null;
+        abort(new SocketException("Connection timed out"));
+      }
+      else if (ref == KEEPALIVE) {
+        keepAliveTimer = null;
+        long idle = System.currentTimeMillis() - lastHeard;
+        if (!keepAlive || !keepsAlive())
+          return;
+        if (keepAliveSent == 0 && idle < stack.keepAliveIdle)
+          keepAliveTimer = createTimerTask(stack.keepAliveIdle - idle, KEEPALIVE);
+        else if (keepAliveSent >= stack.keepAliveProbes)
+          abort(new SocketException("Connection timed out"));
+        else {
+          sendProbe();
+          keepAliveSent++;
+          keepAliveTimer = createTimerTask(stack.keepAliveInterval, KEEPALIVE);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sends an ACK with an old sequence number, which the peer has to
+   * answer with an ACK of its own, carrying its current window: a zero
+   * window probe, or a keepalive.
+   */
+  private void sendProbe() {
+    TCPPacket probe = control(sndUna - 1, true, false, false, advertiseWindow(false));
+    stamp(probe);
+    stack.wrapper.send(probe, route);
+  }
+
+  /**
+   * Returns true in the states where keepalives are sent: synchronized,
+   * with no retransmission of ours to find out that the peer is gone.
+   */
+  private boolean keepsAlive() {
+    states s = state;
+    return s == states.ESTABLISHED || s == states.CLOSE_WAIT || s == states.FIN_WAIT_2;
+  }
+
+  /**
+   * Starts the keepalive timer, if SO_KEEPALIVE is on and it is not
+   * running.
+   */
+  private void startKeepAlive() {
+    if (keepAlive && keepAliveTimer == null && keepsAlive()) {
+      lastHeard = System.currentTimeMillis();
+      keepAliveTimer = createTimerTask(stack.keepAliveIdle, KEEPALIVE);
+    }
+  }
+
+  /**
+   * Wakes up threads blocked on this connection, and queues its channel
+   * on the poller it is registered with, if there is one.
+   */
+  private void signal() {
+    changed.signalAll();
+    if (poller != null)
+      poller.ready(pollable);
+  }
+
+  /**
+   * Returns why the connection was aborted, or null.
+   */
+  IOException failure() {
+    return error;
+  }
+
+  /**
+   * Returns true once the handshake is done, until the connection is
+   * closed.
+   */
+  boolean isConnected() {
+    return !isPending() && state != states.CLOSED;
+  }
+
+  /**
+   * Returns true if the connection can carry a new exchange: established
+   * in both directions, with nothing left unread from the last one.
+   */
+  boolean isReusable() {
+    lock.lock();
+    try {
+      return state == states.ESTABLISHED && recvCount == 0 && !finReceived;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the local port, for the Demultiplexer.
+   */
+  int localPort() {
+    return localport;
+  }
+
+  InetSocketAddress remoteAddress() {
+    lock.lock();
+    try {
+      return address == null ? null : new InetSocketAddress(address, port);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the poller to tell when channel may have become ready, or
+   * none if poller is null.
+   */
+  void setPoller(TCPPoller poller, TCPPoller.Pollable channel) {
+    lock.lock();
+    try {
+      this.poller = poller;
+      this.pollable = channel;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns true if read() would return without waiting.
+   */
+  boolean readable() {
+    lock.lock();
+    try {
+      return recvCount > 0 || finReceived || state == states.CLOSED;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns true if write() would return without waiting, either
+   * because there is room in the send buffer or because it would fail.
+   */
+  boolean writable() {
+    lock.lock();
+    try {
+      if (canSend())
+        return fileCount == 0 && sndCount < sndSize;
+      return !isPending();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves data from the receive buffer into dsts[offset..offset+length),
+   * filling each in turn. If nothing is buffered and block is set,
+   * waits for data, the FIN or the connection to close.
+   *
+   * @return the number of bytes read, 0 if nothing was buffered and
+   *         block is not set, or -1 at the end of the stream
+   */
+  long read(ByteBuffer[] dsts, int offset, int length, boolean block) throws IOException {
+    return read(dsts, offset, length, block, 0);
+  }
+
+  /**
+   * Same, waiting at most timeout milliseconds (0 for no limit) when
+   * blocking.
+   *
+   * @exception SocketTimeoutException if the timeout expires first.
+   */
+  long read(ByteBuffer[] dsts, int offset, int length, boolean block, long timeout) throws IOException {
+    long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    lock.lock();
+    try {
+      if (synDeferred)
+        sendDeferredSyn(); // reading before writing: no data for the SYN
+      while (block && recvCount == 0 && !finReceived && state != states.CLOSED) {
+        try {
+          if (deadline == 0)
+            changed.await();
+          else {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+              throw new SocketTimeoutException("Read timed out");
+            changed.await(wait, TimeUnit.MILLISECONDS);
+          }
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("read interrupted");
+        }
+      }
+      if (recvCount == 0) {
+        if (error != null)
+          throw error;
+        return finReceived || state == states.CLOSED ? -1 : 0;
+      }
+      long total = 0;
+      for (int i = offset; i < offset + length && recvCount > 0; i++) {
+        ByteBuffer dst = dsts[i];
+        int n = Math.min(dst.remaining(), recvCount);
+        int first = Math.min(n, recvSize - recvHead);
+        dst.put(recvBuf, recvHead, first);
+        dst.put(recvBuf, 0, n - first);
+        recvHead = (recvHead + n) % recvSize;
+        recvCount -= n;
+        total += n;
+      }
+      releaseRecvRing();
+      if (total > 0)
+        windowOpened();
+      return total;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the remaining bytes of srcs[offset..offset+length) into the
+   * send buffer and sends what the window allows. If block is set,
+   * waits for room until everything is buffered; otherwise stops when
+   * the buffer is full.
+   *
+   * @return the number of bytes buffered
+   * @exception SocketException if the connection is not open for sending
+   */
+  long write(ByteBuffer[] srcs, int offset, int length, boolean block) throws IOException {
+    lock.lock();
+    try {
+      long total = 0;
+      for (int i = offset; i < offset + length; i++) {
+        ByteBuffer src = srcs[i];
+        while (src.hasRemaining()) {
+          if (!canSend() && !synDeferred) {
+            if (error != null)
+              throw error;
+            if (state != states.SYN_SENT)
+              throw new SocketException("Socket is not connected");
+            // a Fast Open SYN is out; the rest waits for the handshake
+            if (!block)
+              return total;
+            try {
+              changed.await();
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException("write interrupted");
+            }
+            continue;
+          }
+          // nothing can be queued behind a file region until it is
+          // acknowledged, since the ring only holds bytes before it
+          int free = fileCount > 0 ? 0 : sndSize - sndCount;
+          if (free == 0) {
+            if (!block)
+              return total;
+            try {
+              changed.await();
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException("write interrupted");
+            }
+            continue;
+          }
+          int n = Math.min(src.remaining(), free);
+          ByteBuffer ring = sndRing();
+          int tail = (sndHead + sndCount) % sndSize;
+          int first = Math.min(n, sndSize - tail);
+          ring.put(tail, src, src.position(), first);
+          ring.put(0, src, src.position() + first, n - first);
+          src.position(src.position() + n);
+          sndCount += n;
+          total += n;
+          trySend();
+        }
+      }
+      return total;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues count bytes of fc from position on (fewer if the file ends
+   * first) for sending straight from a read-only mapping of the file.
+   * Segments and their retransmissions are views of the mapping, so the
+   * bytes are never copied onto the heap. The file is mapped
+   * MAX_FILE_MAP bytes at a time, and each region must be acknowledged
+   * before the next is mapped or anything else is written, so the file
+   * must not change until then.
+   *
+   * @return the number of bytes queued: all of them if block is set,
+   *         otherwise what could be queued without waiting, maybe 0
+   * @exception SocketException if the connection is not open for sending
+   */
+  long sendFile(FileChannel fc, long position, long count, boolean block) throws IOException {
+    lock.lock();
+    try {
+      count = Math.max(0, Math.min(count, fc.size() - position));
+      long total = 0;
+      while (total < count) {
+        if (!canSend()) {
+          if (error != null)
+            throw error;
+          if (state != states.SYN_SENT)
+            throw new SocketException("Socket is not connected");
+          // a Fast Open connection: the file waits for the handshake
+          if (synDeferred)
+            sendDeferredSyn();
+          if (!block)
+            return total;
+          try {
+            changed.await();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException("sendFile interrupted");
+          }
+          continue;
+        }
+        if (fileCount > 0) {
+          if (!block)
+            return total;
+          try {
+            changed.await();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException("sendFile interrupted");
+          }
+          continue;
+        }
+        int n = (int) Math.min(count - total, MAX_FILE_MAP);
+        sndFile = fc.map(FileChannel.MapMode.READ_ONLY, position + total, n);
+        fileHead = 0;
+        fileCount = n;
+        sndCount += n;
+        total += n;
+        trySend();
+      }
+      return total;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Application side of the receive buffer.
+   */
+  private class TCPInputStream extends InputStream {
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      ByteBuffer[] dst = { ByteBuffer.wrap(b, off, len) };
+      return (int) StudentSocketImpl.this.read(dst, 0, 1, true, soTimeout);
+    }
+
+    public int available() {
+      lock.lock();
       try {
-        changeState(states.CLOSED);
-      } catch (IOException e) {
-        e.printStackTrace();
+        return recvCount;
+      } finally {
+        lock.unlock();
       }
     }
-    else{
-      System.out.println(timers);
-      TCPWrapper.send(packets.get(currState), address);
-      timers.replace(currState, createTimerTask(2500, new Object()));
+  }
+
+  /**
+   * Application side of the send buffer. write() blocks while the send
+   * buffer is full.
+   */
+  private class TCPOutputStream extends OutputStream {
+
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer[] src = { ByteBuffer.wrap(b, off, len) };
+      StudentSocketImpl.this.write(src, 0, 1, true);
     }
   }
 }
@@ -5,25 +5,28 @@ import java.net.*;
 // class StudentSocketImplFactory
 //
 // this object is what actually creates each INSTANCE of a
-// SocketImpl object.  In TCPStart.main(), we call
+// SocketImpl object.  In TCPStart.start(), we call
 //
-//     Socket.setSocketImplFactory( new StudentSocketImplFactory(D) );
+//     Socket.setSocketImplFactory( stack.factory );
 //
 // (this is a static function)
 // so, when we create a java Socket, it will make a call to
 // createSocketImpl(), and the Socket will use OUR code!!!
 //
+// every TCPStack has a factory of its own; only the one TCPStart
+// installs is used by plain Sockets.
+//
 //---------------------------------------------------
 class StudentSocketImplFactory implements SocketImplFactory {
 
-    // the Demultiplexer has to be known to every SocketImpl, so that it
-    // can communicate with it
-    private Demultiplexer D;
+    // the stack has to be known to every SocketImpl, so that it can
+    // communicate with its Demultiplexer and TCPWrapper
+    private TCPStack stack;
 
 
-    public StudentSocketImplFactory(Demultiplexer D) {
+    public StudentSocketImplFactory(TCPStack stack) {
         super();
-        this.D = D;
+        this.stack = stack;
     }
 
     // Socket object makes this call to get one instance of SocketImpl.
@@ -31,6 +34,6 @@ class StudentSocketImplFactory implements SocketImplFactory {
     // SocketImpl. this is GOOD, so that we will have one TCPConnection
     // for each Socket!!
     public SocketImpl createSocketImpl() {
-        return ( new StudentSocketImpl(D) );
+        return ( new StudentSocketImpl(stack) );
     }
 }
@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPBufferPool
+//
+// the send and receive rings of a stack's connections. a connection
+// holds a ring only while there is data in it: it takes one from here
+// when data arrives or is written, and gives it back as soon as the
+// ring is empty again. an idle connection, of which a gateway or a
+// connection pool keeps very many, then costs its bookkeeping and no
+// buffer space at all.
+//
+// only rings of the stack's current default sizes are kept for reuse,
+// at most maxIdle of each kind; rings of other sizes (SO_SNDBUF,
+// SO_RCVBUF) are made when taken and left to the garbage collector
+// when given back. rings kept from before the defaults changed are
+// dropped when they come up, so a connection always gets a ring of the
+// size it asked for. a ring comes back with whatever it last held,
+// which is never read: a connection only reads the bytes it wrote there.
+//
+//---------------------------------------------------
+final class TCPBufferPool {
+
+    private final TCPStack stack;
+
+    // free rings kept of each kind
+    volatile int maxIdle = 256;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<byte[]> recvFree = new ArrayDeque<byte[]>();
+    private final ArrayDeque<ByteBuffer> sendFree = new ArrayDeque<ByteBuffer>();
+
+    // counters, for reporting: rings made, and rings taken from the
+    // free lists instead
+    long allocated;
+    long reused;
+
+    TCPBufferPool(TCPStack stack) {
+        this.stack = stack;
+    }
+
+
+    // a receive ring of size bytes
+    byte[] takeRecv(int size) {
+        lock.lock();
+        try {
+            if (size==stack.recvBufferSize)
+                while (!recvFree.isEmpty()) {
+                    byte[] b = recvFree.pop();
+                    if (b.length==size) {
+                        reused++;
+                        return b;
+                    }
+                    // kept before the default size changed: dropped
+                }
+            allocated++;
+        }
+        finally {
+            lock.unlock();
+        }
+        return new byte[size];
+    }
+
+    void giveRecv(byte[] b) {
+        lock.lock();
+        try {
+            if (b.length==stack.recvBufferSize && recvFree.size()<maxIdle)
+                recvFree.push(b);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // a send ring of size bytes, direct if the stack says so
+    ByteBuffer takeSend(int size) {
+        boolean direct = stack.directBuffers;
+        lock.lock();
+        try {
+            if (size==stack.sendBufferSize)
+                while (!sendFree.isEmpty()) {
+                    ByteBuffer b = sendFree.pop();
+                    if (b.capacity()==size && b.isDirect()==direct) {
+                        reused++;
+                        return b;
+                    }
+                    // kept before the default size or kind changed
+                }
+            allocated++;
+        }
+        finally {
+            lock.unlock();
+        }
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    void giveSend(ByteBuffer b) {
+        lock.lock();
+        try {
+            if (b.capacity()==stack.sendBufferSize &&
+                b.isDirect()==stack.directBuffers && sendFree.size()<maxIdle)
+                sendFree.push(b.clear());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // free rings held, both kinds
+    int idle() {
+        lock.lock();
+        try {
+            return recvFree.size()+sendFree.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPCapture
+//
+// a recording of the datagrams a stack received and sent, in order and
+// with their times, for tcpreplay. a stack records into one with
+//
+//   stack.startCapture(new TCPCapture(new FileOutputStream(file)));
+//   ...
+//   stack.stopCapture();
+//
+// or, for the stack TCPStart makes, -DCAPTURE=<file> (closed when the
+// program exits). inbound datagrams are recorded as they come off the
+// socket, before the checksum is looked at, outbound ones as they are
+// handed to the socket, so dropped packets (-DLOSSRATE) are not in it.
+//
+// the file is a 6 byte header, MAGIC and VERSION, then one record per
+// datagram:
+//
+//   byte     'I' received or 'O' sent
+//   varint   microseconds since the record before (since start()
+//            for the first)
+//   byte     length of the peer's address, 4 or 16, then the address
+//   short    the peer's UDP port
+//   short    length of the datagram, then the datagram
+//
+// a varint is 7 bits per byte, low bits first, the top bit set on all
+// but the last byte.
+//
+//---------------------------------------------------
+final class TCPCapture implements Closeable {
+
+    static final int MAGIC = 0x54435043; // "TCPC"
+    static final int VERSION = 1;
+
+    static final byte INBOUND = 'I';
+    static final byte OUTBOUND = 'O';
+
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // when the last record was made (System.nanoTime())
+    private long last;
+
+    // an outbound datagram sent as a gathering write is put together here
+    private byte[] gathered = new byte[TCPPacket.MAX_UDP_PAYLOAD];
+
+    // records written, and whether writing failed
+    long records;
+    IOException error;
+
+    TCPCapture(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64*1024));
+        this.out.writeInt(MAGIC);
+        this.out.writeShort(VERSION);
+        last = System.nanoTime();
+    }
+
+
+    // records a datagram received from addr:port
+    void inbound(byte[] buf, int off, int len, InetAddress addr, int port) {
+        record(INBOUND, buf, off, len, addr, port);
+    }
+
+    // records a datagram sent to to, all in buf
+    void outbound(byte[] buf, int off, int len, InetSocketAddress to) {
+        record(OUTBOUND, buf, off, len, to.getAddress(), to.getPort());
+    }
+
+    // records a datagram sent to to as the header in head followed by
+    // the remaining bytes of n buffers of parts from index from. the
+    // buffers' positions are left alone.
+    void outbound(byte[] head, int headLength, ByteBuffer[] parts, int from, int n,
+                  InetSocketAddress to) {
+        lock.lock();
+        try {
+            System.arraycopy(head, 0, gathered, 0, headLength);
+            int len = headLength;
+            for (int i=from; i<from+n; i++) {
+                ByteBuffer b = parts[i];
+                b.get(b.position(), gathered, len, b.remaining());
+                len += b.remaining();
+            }
+            record(OUTBOUND, gathered, 0, len, to.getAddress(), to.getPort());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(byte kind, byte[] buf, int off, int len,
+                        InetAddress addr, int port) {
+        lock.lock();
+        try {
+            if (error!=null)
+                return;
+            long now = System.nanoTime();
+            out.writeByte(kind);
+            writeVarint(out, (now-last)/1000);
+            last = now;
+            byte[] a = addr.getAddress();
+            out.writeByte(a.length);
+            out.write(a);
+            out.writeShort(port);
+            out.writeShort(len);
+            out.write(buf, off, len);
+            records++;
+        }
+        catch (IOException e) {
+            // stop recording, but not the stack
+            error = e;
+            System.out.println("capture stopped: "+e);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL)!=0) {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+
+    // one datagram of a recording
+    static final class Record {
+        byte kind;
+        long time;        // microseconds since the recording started
+        InetAddress addr;
+        int port;
+        byte[] data;
+        int length;
+
+        boolean inbound() {
+            return kind==INBOUND;
+        }
+    }
+
+    // reads a recording back, one record at a time
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private long time;
+
+        // reused for every record read
+        private final Record record = new Record();
+
+        Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64*1024));
+            if (this.in.readInt()!=MAGIC)
+                throw new IOException("not a capture");
+            int version = this.in.readUnsignedShort();
+            if (version!=VERSION)
+                throw new IOException("capture version "+version+" not supported");
+            record.data = new byte[TCPPacket.MAX_UDP_PAYLOAD];
+        }
+
+        // the next record, or null at the end. the record and its data
+        // are overwritten by the next call.
+        Record next() throws IOException {
+            int kind = in.read();
+            if (kind<0)
+                return null;
+            record.kind = (byte) kind;
+            time += readVarint(in);
+            record.time = time;
+            byte[] a = new byte[in.readUnsignedByte()];
+            in.readFully(a);
+            record.addr = InetAddress.getByAddress(a);
+            record.port = in.readUnsignedShort();
+            record.length = in.readUnsignedShort();
+            in.readFully(record.data, 0, record.length);
+            return record;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private static long readVarint(DataInputStream in) throws IOException {
+            long v = 0;
+            for (int shift=0; ; shift+=7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7f)<<shift;
+                if ((b & 0x80)==0)
+                    return v;
+            }
+        }
+    }
+}
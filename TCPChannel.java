@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPChannel
+//
+// a channel on one connection of our stack, for applications built
+// on NIO buffers. read() and write() move bytes straight between the
+// caller's ByteBuffers and the connection's buffers, scattering and
+// gathering over arrays of them, with no InputStream or OutputStream
+// (and no extra copy) in between.
+//
+// a channel is blocking when opened. in non-blocking mode:
+//   read()     returns 0 instead of waiting for data
+//   write()    buffers what fits and returns the count, maybe 0
+//   connect()  only sends the SYN; finishConnect() says when the
+//              handshake is done
+//   sendFile() queues a file region only when the last one is
+//              acknowledged
+// readiness is reported through a TCPPoller (see register()), so one
+// thread can serve many channels.
+//
+// channels are made with open(), on the stack TCPStart.start() made,
+// with TCPStack.openChannel(), or accepted from a TCPServerChannel.
+//
+//---------------------------------------------------
+class TCPChannel implements ByteChannel, ScatteringByteChannel,
+                            GatheringByteChannel, TCPPoller.Pollable {
+
+    private final StudentSocketImpl impl;
+
+    // guards the fields below; the flags are also read without it.
+    // not a monitor, since blocking calls are made with it held.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile boolean blocking = true;
+    private volatile boolean open = true;
+
+    // true from a non-blocking connect() until finishConnect() says the
+    // handshake is done
+    private volatile boolean connecting;
+
+    private TCPPoller poller;
+
+
+    TCPChannel(StudentSocketImpl impl) {
+        this.impl = impl;
+    }
+
+    // a new, unconnected channel
+    public static TCPChannel open() {
+        return TCPStart.stack.openChannel();
+    }
+
+    // a new channel, connected (blocking) to remote
+    public static TCPChannel open(SocketAddress remote) throws IOException {
+        TCPChannel c = open();
+        c.connect(remote);
+        return c;
+    }
+
+
+    public TCPChannel configureBlocking(boolean block) {
+        blocking = block;
+        return this;
+    }
+
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+
+    // starts connecting to remote. a blocking channel waits for the
+    // handshake and returns true; a non-blocking one returns false and
+    // the connection is finished with finishConnect().
+    public boolean connect(SocketAddress remote) throws IOException {
+        ensureOpen();
+        InetSocketAddress to = (InetSocketAddress) remote;
+        lock.lock();
+        try {
+            if (connecting)
+                throw new ConnectionPendingException();
+            if (impl.isConnected())
+                throw new AlreadyConnectedException();
+            impl.startConnect(to.getAddress(), to.getPort());
+            if (!blocking) {
+                connecting = true;
+                return false;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        impl.awaitEstablished();
+        return true;
+    }
+
+    // true once the connection is established. a blocking channel waits
+    // for it.
+    public boolean finishConnect() throws IOException {
+        ensureOpen();
+        lock.lock();
+        try {
+            if (!connecting)
+                return impl.isConnected();
+            if (blocking)
+                impl.awaitEstablished();
+            else if (impl.isPending())
+                return false;
+            connecting = false;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (!impl.isConnected()) {
+            IOException e = impl.failure();
+            throw e!=null ? e : new ConnectException("Connection failed");
+        }
+        return true;
+    }
+
+    public boolean isConnectionPending() {
+        return connecting;
+    }
+
+    public boolean isConnected() {
+        return impl.isConnected();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return impl.remoteAddress();
+    }
+
+
+    public int read(ByteBuffer dst) throws IOException {
+        return (int) read(new ByteBuffer[] { dst }, 0, 1);
+    }
+
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    // scatters what is in the receive buffer over dsts. returns -1 at
+    // the end of the stream.
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        ensureOpen();
+        return impl.read(dsts, offset, length, blocking);
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    // gathers the remaining bytes of srcs into the send buffer. a
+    // blocking channel returns once all of them are buffered.
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureOpen();
+        if (!impl.isConnected())
+            throw new NotYetConnectedException();
+        return impl.write(srcs, offset, length, blocking);
+    }
+
+
+    // sends count bytes of fc from position on straight from a mapping
+    // of the file, without reading them into memory. returns the number
+    // of bytes queued; non-blocking, that may be fewer, even 0. the
+    // file must not change until the data has been acknowledged.
+    public long sendFile(FileChannel fc, long position, long count)
+        throws IOException {
+        ensureOpen();
+        if (!impl.isConnected())
+            throw new NotYetConnectedException();
+        return impl.sendFile(fc, position, count, blocking);
+    }
+
+
+    // registers this channel with poller for ops (TCPPoller.OP_READ,
+    // OP_WRITE, OP_CONNECT), or changes the set it was registered with.
+    // a channel is registered with one poller at a time.
+    public void register(TCPPoller poller, int ops) throws IOException {
+        ensureOpen();
+        lock.lock();
+        try {
+            if (this.poller!=null && this.poller!=poller)
+                this.poller.cancel(this);
+            this.poller = poller;
+        }
+        finally {
+            lock.unlock();
+        }
+        impl.setPoller(poller, this);
+        poller.register(this, ops);
+    }
+
+    public int readyOps() {
+        if (!open)
+            return 0;
+        int ops = 0;
+        if (connecting) {
+            if (!impl.isPending())
+                ops |= TCPPoller.OP_CONNECT;
+            return ops;
+        }
+        if (impl.readable())
+            ops |= TCPPoller.OP_READ;
+        if (impl.writable())
+            ops |= TCPPoller.OP_WRITE;
+        return ops;
+    }
+
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // closes the connection. as with Socket.close(), this waits for
+    // buffered data to be acknowledged before the FIN goes out.
+    public void close() throws IOException {
+        TCPPoller p;
+        lock.lock();
+        try {
+            if (!open)
+                return;
+            open = false;
+            p = poller;
+            poller = null;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (p!=null)
+            p.cancel(this);
+        impl.close();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    public String toString() {
+        return "TCPChannel["+impl.remoteAddress()+"]";
+    }
+}
@@ -0,0 +1,157 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+
+//---------------------------------------------------
+//
+// class TCPChecksum
+//
+// the real TCP checksum: the 16 bit one's complement of the one's
+// complement sum of a pseudo-header (source and destination IP
+// address, protocol 6 and TCP length), the TCP header and the data.
+//
+// the sum is taken 8 bytes at a time. since 2^16 = 1 (mod 2^16-1),
+// adding big-endian 32 bit halves into a long and folding at the end
+// gives the same result as adding 16 bit words, with a quarter of the
+// loop iterations.
+//
+// there are no IP addresses in our UDP-wrapped segments, so both ends
+// use the address pair the datagram travels between: the peer's
+// address, and the local address the system picks to reach it (the
+// same on both ends for loopback and for symmetric routes). since the
+// sum of the two addresses does not depend on the direction, it is
+// cached per peer.
+//
+// everything here is static.
+//
+//---------------------------------------------------
+final class TCPChecksum {
+
+    private static final int PROTO_TCP = 6;
+
+    // reads 8 bytes of a byte[] as one big-endian long
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // one's complement sum of (local address + peer address), per peer
+    private static final ConcurrentHashMap<InetAddress, Integer> addressSums =
+        new ConcurrentHashMap<InetAddress, Integer>();
+
+    private TCPChecksum() {
+    }
+
+
+    // computes the checksum of the segment in buf[off..off+len) going
+    // to or coming from peer. the checksum field (bytes 16 and 17) must
+    // be 0 when computing one to send; when verifying a received segment
+    // with its checksum in place the result is 0 if it is intact.
+    static int compute(byte[] buf, int off, int len, InetAddress peer) {
+        return finish(sum(buf, off, len, 0), len, peer);
+    }
+
+    // turns the sum of a whole segment of len bytes (header and data)
+    // into its checksum by adding in the pseudo-header
+    static int finish(long sum, int len, InetAddress peer) {
+        sum += addressSum(peer) + PROTO_TCP + len;
+        return ~fold(sum) & 0xffff;
+    }
+
+    // true if the received segment in buf[off..off+len) from peer is
+    // intact
+    static boolean verify(byte[] buf, int off, int len, InetAddress peer) {
+        return compute(buf, off, len, peer)==0;
+    }
+
+    // adds buf[off..off+len) as big-endian 16 bit words to sum, not
+    // folded. off must be even for the words to line up.
+    static long sum(byte[] buf, int off, int len, long sum) {
+        int i = off;
+        int end = off+len;
+        for (; i+8<=end; i+=8) {
+            long v = (long) LONGS.get(buf, i);
+            sum += (v>>>32) + (v & 0xffffffffL);
+        }
+        for (; i+2<=end; i+=2)
+            sum += ((buf[i] & 0xff)<<8) | (buf[i+1] & 0xff);
+        if (i<end)
+            sum += (buf[i] & 0xff)<<8; // odd byte, padded with zero
+        return sum;
+    }
+
+    // same as above for bytes [off..off+len) of a ByteBuffer, which may
+    // be direct. the buffer's position and limit are not used.
+    static long sum(ByteBuffer buf, int off, int len, long sum) {
+        if (buf.hasArray())
+            return sum(buf.array(), buf.arrayOffset()+off, len, sum);
+        int i = off;
+        int end = off+len;
+        if (buf.order()==ByteOrder.BIG_ENDIAN)
+            for (; i+8<=end; i+=8) {
+                long v = buf.getLong(i);
+                sum += (v>>>32) + (v & 0xffffffffL);
+            }
+        for (; i+2<=end; i+=2)
+            sum += ((buf.get(i) & 0xff)<<8) | (buf.get(i+1) & 0xff);
+        if (i<end)
+            sum += (buf.get(i) & 0xff)<<8;
+        return sum;
+    }
+
+    // the sum of two runs of bytes, a then b, as if they were one. if a
+    // has an odd length b's words straddle the boundary, which comes
+    // down to swapping the bytes of b's folded sum (RFC 1071).
+    static int join(int a, int aLength, int b) {
+        if ((aLength & 1)!=0)
+            b = ((b & 0xff)<<8) | (b>>>8);
+        return fold((long) a + b);
+    }
+
+    // folds a long sum down to 16 bits with end-around carry
+    static int fold(long sum) {
+        sum = (sum & 0xffffffffL) + (sum>>>32);
+        sum = (sum & 0xffffffffL) + (sum>>>32);
+        sum = (sum & 0xffff) + (sum>>>16);
+        sum = (sum & 0xffff) + (sum>>>16);
+        sum = (sum & 0xffff) + (sum>>>16);
+        return (int) sum;
+    }
+
+    // RFC 1624 incremental update: the checksum after one 16 bit word
+    // of the segment changed from oldWord to newWord.
+    //   HC' = ~(~HC + ~m + m')
+    static int update(int checksum, int oldWord, int newWord) {
+        long sum = (~checksum & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+        return ~fold(sum) & 0xffff;
+    }
+
+
+    // one's complement sum of the local and peer address words
+    private static int addressSum(InetAddress peer) {
+        Integer cached = addressSums.get(peer);
+        if (cached!=null)
+            return cached;
+        byte[] a = peer.getAddress();
+        byte[] b = localAddressFor(peer).getAddress();
+        int s = fold(sum(a, 0, a.length, sum(b, 0, b.length, 0)));
+        addressSums.put(peer, s);
+        return s;
+    }
+
+    // the local address the system would send from to reach peer.
+    // connecting a datagram socket sends nothing, it only picks the
+    // route.
+    private static InetAddress localAddressFor(InetAddress peer) {
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.connect(peer, 9);
+            InetAddress local = s.getLocalAddress();
+            if (local!=null && !local.isAnyLocalAddress())
+                return local;
+        }
+        catch (SocketException e) {
+        }
+        return peer; // no route to it, fall back to its own address
+    }
+}
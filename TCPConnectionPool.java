@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPConnectionPool
+//
+// keeps established connections open between uses, for clients that
+// make many short exchanges with the same servers. a new Socket costs
+// a three-way handshake before the first byte, and closing it costs a
+// FIN exchange and 30 seconds of TIME_WAIT; a connection taken from
+// the pool costs neither.
+//
+//   Socket s = pool.acquire(server);
+//   ... request and response on s ...
+//   pool.release(s);
+//
+// a released connection goes back to the pool only if it can carry
+// another exchange: still ESTABLISHED both ways, with everything the
+// server sent read. anything else is closed. an exchange that fails
+// half way should be closed with s.close(), not released.
+//
+// limits:
+//   maxPerHost   connections to one destination, in use or idle.
+//                acquire() waits for one to come back beyond that.
+//   maxIdle      idle connections over all destinations. past it the
+//                least recently used one is closed.
+//   idleTimeout  milliseconds an idle connection is kept.
+//
+// the most recently released connection to a destination is handed
+// out first, so the rest age out under light load.
+//
+// connections are made on the stack given, or the one TCPStart.start()
+// made.
+//
+//---------------------------------------------------
+class TCPConnectionPool {
+
+    // an idle connection, and when it came back
+    private static class Entry {
+        final InetSocketAddress to;
+        final PooledSocket socket;
+        final long since;
+
+        Entry(InetSocketAddress to, PooledSocket socket, long since) {
+            this.to = to;
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+    // what the pool knows about one destination
+    private static class Host {
+        final ArrayDeque<Entry> idle = new ArrayDeque<Entry>(); // newest first
+        int leased;
+    }
+
+    // a Socket on an impl the pool made, so that the pool can ask the
+    // connection itself whether it is reusable
+    static class PooledSocket extends Socket {
+        final StudentSocketImpl impl;
+        InetSocketAddress to; // the pool key, null once released or closed
+
+        PooledSocket(StudentSocketImpl impl) throws SocketException {
+            super(impl);
+            this.impl = impl;
+        }
+    }
+
+    private final TCPStack stack;
+    private final int maxPerHost;
+    private final int maxIdle;
+    private final long idleTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // signalled when a connection to some destination is given back
+    private final Condition released = lock.newCondition();
+
+    private final HashMap<InetSocketAddress, Host> hosts =
+        new HashMap<InetSocketAddress, Host>();
+
+    // every idle connection, least recently released first
+    private final LinkedHashSet<Entry> lru = new LinkedHashSet<Entry>();
+
+    private boolean closed;
+
+    // counters, for reporting
+    long opened;   // handshakes done
+    long reused;   // acquires served from the pool
+    long evicted;  // idle connections closed by the limits
+
+
+    TCPConnectionPool(int maxPerHost, int maxIdle, long idleTimeout) {
+        this(TCPStart.stack, maxPerHost, maxIdle, idleTimeout);
+    }
+
+    TCPConnectionPool(TCPStack stack, int maxPerHost, int maxIdle,
+                      long idleTimeout) {
+        this.stack = stack;
+        this.maxPerHost = maxPerHost;
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+    }
+
+
+    // a connection to the given destination: an idle one if there is
+    // one, else a new one. waits while maxPerHost connections to it are
+    // in use.
+    public Socket acquire(InetSocketAddress to)
+        throws IOException, InterruptedException {
+        ArrayList<Entry> stale = new ArrayList<Entry>();
+        PooledSocket found = null;
+        lock.lock();
+        try {
+            expire(System.currentTimeMillis(), stale);
+            Host h;
+            while (true) {
+                if (closed)
+                    throw new SocketException("pool closed");
+                // looked up again after every wait: the one from before
+                // may have been dropped (forget()) in the meantime
+                h = host(to);
+                Entry e = h.idle.pollFirst();
+                if (e!=null) {
+                    lru.remove(e);
+                    if (e.socket.impl.isReusable()) {
+                        found = e.socket;
+                        reused++;
+                        break;
+                    }
+                    stale.add(e); // closed or written to while idle
+                    continue;
+                }
+                if (h.leased<maxPerHost)
+                    break;
+                released.await();
+            }
+            h.leased++;
+        }
+        finally {
+            lock.unlock();
+        }
+        closeAll(stale);
+
+        if (found==null) {
+            try {
+                found = new PooledSocket(stack.newImpl());
+                found.connect(to);
+            }
+            catch (IOException e) {
+                giveBack(to);
+                throw e;
+            }
+            lock.lock();
+            try {
+                opened++;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        found.to = to;
+        return found;
+    }
+
+    public Socket acquire(String host, int port)
+        throws IOException, InterruptedException {
+        return acquire(new InetSocketAddress(host, port));
+    }
+
+    // gives a connection from acquire() back. it is kept if it can be
+    // used again and closed otherwise.
+    public void release(Socket s) throws IOException {
+        PooledSocket ps = (PooledSocket) s;
+        InetSocketAddress to = ps.to;
+        if (to==null)
+            return; // already released
+        ps.to = null;
+        ArrayList<Entry> stale = new ArrayList<Entry>();
+        boolean keep = ps.impl.isReusable();
+        lock.lock();
+        try {
+            Host h = host(to);
+            h.leased--;
+            keep &= !closed;
+            if (keep) {
+                long now = System.currentTimeMillis();
+                Entry e = new Entry(to, ps, now);
+                h.idle.addFirst(e);
+                lru.add(e);
+                expire(now, stale);
+                while (lru.size()>maxIdle)
+                    stale.add(evict(lru.iterator().next()));
+            }
+            else
+                forget(to, h);
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        if (!keep)
+            ps.close();
+        closeAll(stale);
+    }
+
+    // closes the idle connections that have timed out or can no longer
+    // be used (the server closed them, say). acquire() and release()
+    // only look at the oldest ones, so a pool left alone for a while
+    // can be swept with this.
+    public void evictIdle() throws IOException {
+        ArrayList<Entry> stale = new ArrayList<Entry>();
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (Entry e : new ArrayList<Entry>(lru))
+                if (now-e.since>=idleTimeout || !e.socket.impl.isReusable())
+                    stale.add(evict(e));
+        }
+        finally {
+            lock.unlock();
+        }
+        closeAll(stale);
+    }
+
+    // closes every idle connection. ones in use are closed as they are
+    // released, and acquire() fails from now on.
+    public void close() throws IOException {
+        ArrayList<Entry> stale;
+        lock.lock();
+        try {
+            closed = true;
+            stale = new ArrayList<Entry>(lru);
+            for (Entry e : stale)
+                evict(e);
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        closeAll(stale);
+    }
+
+    // the number of idle connections
+    public int idle() {
+        lock.lock();
+        try {
+            return lru.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    // a failed connect() gives its slot back
+    private void giveBack(InetSocketAddress to) {
+        lock.lock();
+        try {
+            Host h = host(to);
+            h.leased--;
+            forget(to, h);
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Host host(InetSocketAddress to) {
+        Host h = hosts.get(to);
+        if (h==null) {
+            h = new Host();
+            hosts.put(to, h);
+        }
+        return h;
+    }
+
+    // takes idle connections past idleTimeout out of the pool, oldest
+    // first. the lock must be held.
+    private void expire(long now, ArrayList<Entry> stale) {
+        while (!lru.isEmpty()) {
+            Entry e = lru.iterator().next();
+            if (now-e.since<idleTimeout)
+                return;
+            stale.add(evict(e));
+        }
+    }
+
+    // takes an idle connection out of the pool. the lock must be held.
+    private Entry evict(Entry e) {
+        lru.remove(e);
+        Host h = hosts.get(e.to);
+        h.idle.remove(e);
+        forget(e.to, h);
+        evicted++;
+        return e;
+    }
+
+    // drops a destination nothing is connected to any more. the lock
+    // must be held.
+    private void forget(InetSocketAddress to, Host h) {
+        if (h.idle.isEmpty() && h.leased==0)
+            hosts.remove(to);
+    }
+
+    // closing waits for unacknowledged data, so it is done without the
+    // lock held
+    private void closeAll(ArrayList<Entry> stale) throws IOException {
+        for (Entry e : stale)
+            e.socket.close();
+    }
+
+
+    public static void main(String args[]) throws Exception {
+        // for DEBUGGING ONLY!!!
+
+        // with maxPerHost 1: one connection is leased and two threads
+        // wait for it. it comes back unusable (the server wrote to it
+        // and nothing read that), which drops the destination from the
+        // pool. the waiters must then get the one lease in turn, never
+        // both at once, and neither may be left waiting.
+
+        final int port = args.length>0 ? Integer.parseInt(args[0]) : 15210;
+        TCPStack stack = new TCPStack(port);
+        stack.traceStates = false;
+        stack.tracePackets = false;
+        stack.start();
+        final ServerSocket server = stack.serverSocket(port);
+        Thread writer = new Thread("pool test server") {
+                public void run() {
+                    try {
+                        while (true)
+                            server.accept().getOutputStream().write(1);
+                    }
+                    catch (IOException e) {
+                    }
+                }
+            };
+        writer.setDaemon(true);
+        writer.start();
+
+        final TCPConnectionPool pool = new TCPConnectionPool(stack, 1, 4, 60000);
+        final InetSocketAddress to =
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        final AtomicInteger leased = new AtomicInteger();
+        final AtomicInteger most = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+
+        PooledSocket first = (PooledSocket) pool.acquire(to);
+        leased.incrementAndGet();
+        Thread[] waiters = new Thread[2];
+        for (int i=0; i<waiters.length; i++) {
+            waiters[i] = new Thread("pool test waiter "+i) {
+                    public void run() {
+                        try {
+                            PooledSocket s = (PooledSocket) pool.acquire(to);
+                            int n = leased.incrementAndGet();
+                            if (n>most.get())
+                                most.set(n);
+                            unusable(s);
+                            leased.decrementAndGet();
+                            pool.release(s);
+                            done.incrementAndGet();
+                        }
+                        catch (Exception e) {
+                            System.out.println(getName()+": "+e);
+                        }
+                    }
+                };
+            waiters[i].setDaemon(true);
+            waiters[i].start();
+        }
+        Thread.sleep(500); // both waiting
+        unusable(first);
+        leased.decrementAndGet();
+        pool.release(first);
+
+        for (Thread t : waiters)
+            t.join(60000);
+        boolean ok = done.get()==waiters.length && most.get()==1;
+        System.out.println("waiters done="+done.get()+" most leased at once="+
+                           most.get()+(ok ? " ok" : " FAILED"));
+        System.exit(ok ? 0 : 1);
+    }
+
+    // waits for the server's byte to arrive, which makes s unusable
+    private static void unusable(PooledSocket s) throws InterruptedException {
+        for (int i=0; i<1000 && s.impl.isReusable(); i++)
+            Thread.sleep(10);
+    }
+}
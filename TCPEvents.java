@@ -0,0 +1,187 @@
+import java.net.InetAddress;
+import jdk.jfr.*;
+
+//---------------------------------------------------
+//
+// class TCPEvents
+//
+// Java Flight Recorder events for what the counters cannot show: when
+// things happened, to which connection, and next to what the GC and
+// the CPU were doing at the time. record with
+//
+//   java -XX:StartFlightRecording:filename=tcp.jfr ...
+//   jfr print --categories TCP tcp.jfr
+//
+// all are in the "TCP" category:
+//   tcp.StateChange        every FSM transition, with the time spent in
+//                          the state left
+//   tcp.Handshake          SYN to ESTABLISHED, as a duration
+//   tcp.RetransmitTimeout  a retransmission timer going off
+//   tcp.RateLimitStall     a send held back by the packet rate limit
+//   tcp.DemuxMiss          a segment that matched no connection
+//
+// an event is only built while a running recording has it enabled:
+// each hook tests one of the flags below first, and with no recording
+// (or the event off) does nothing more. the flags are looked up again
+// whenever a recording starts or stops, so enabling an event in a
+// recording that is already running takes effect at the next start or
+// stop. strings are only built for events that are to be committed.
+//
+// by default only what is rare or slow is kept, so that a recording
+// can stay on in production: handshakes over 20 ms, stalls over 10 ms,
+// every retransmission timeout and every miss. tcp.StateChange, one
+// event per transition, is off unless asked for in a .jfc given after
+// the default one (settings=default,settings=tcp.jfc):
+//
+//   <configuration version="2.0">
+//     <event name="tcp.StateChange">
+//       <setting name="enabled">true</setting>
+//     </event>
+//   </configuration>
+//
+//---------------------------------------------------
+final class TCPEvents {
+
+    private TCPEvents() {
+    }
+
+    // whether each event is enabled in a running recording, see above
+    static volatile boolean stateChangeEnabled;
+    static volatile boolean handshakeEnabled;
+    static volatile boolean retransmitTimeoutEnabled;
+    static volatile boolean rateLimitStallEnabled;
+    static volatile boolean demuxMissEnabled;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+                public void recordingStateChanged(Recording r) {
+                    update();
+                }
+            });
+        // a recording started with the JVM is already running
+        if (FlightRecorder.isInitialized())
+            update();
+    }
+
+    private static void update() {
+        stateChangeEnabled = enabled(StateChange.class);
+        handshakeEnabled = enabled(Handshake.class);
+        retransmitTimeoutEnabled = enabled(RetransmitTimeout.class);
+        rateLimitStallEnabled = enabled(RateLimitStall.class);
+        demuxMissEnabled = enabled(DemuxMiss.class);
+    }
+
+    private static boolean enabled(Class<? extends Event> c) {
+        return EventType.getEventType(c).isEnabled();
+    }
+
+    // the fields every connection event carries
+    @Category("TCP")
+    @StackTrace(false)
+    abstract static class ConnectionEvent extends Event {
+        @Label("Local Port")
+        int localPort;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Remote Port")
+        int remotePort;
+
+        void connection(int localPort, InetAddress address, int remotePort) {
+            this.localPort = localPort;
+            this.remoteAddress = address==null ? null : address.getHostAddress();
+            this.remotePort = remotePort;
+        }
+    }
+
+    @Name("tcp.StateChange")
+    @Label("TCP State Change")
+    @Enabled(false)
+    static final class StateChange extends ConnectionEvent {
+        @Label("From")
+        String from;
+
+        @Label("To")
+        String to;
+
+        @Label("Time In State")
+        @Timespan(Timespan.NANOSECONDS)
+        long timeInState;
+
+        @Label("Send Sequence")
+        int seqNum;
+
+        @Label("Receive Sequence")
+        int ackNum;
+    }
+
+    @Name("tcp.Handshake")
+    @Label("TCP Handshake")
+    @Description("From the SYN sent or received to ESTABLISHED")
+    @Threshold("20 ms")
+    static final class Handshake extends ConnectionEvent {
+        @Label("Active Open")
+        boolean active;
+
+        @Label("Fast Open")
+        @Description("Data went with the SYN")
+        boolean fastOpen;
+    }
+
+    @Name("tcp.RetransmitTimeout")
+    @Label("TCP Retransmission Timeout")
+    static final class RetransmitTimeout extends ConnectionEvent {
+        @Label("Sequence")
+        int seqNum;
+
+        @Label("Length")
+        int length;
+
+        @Label("Retries")
+        int retries;
+
+        @Label("Timeout")
+        @Timespan(Timespan.MILLISECONDS)
+        long rto;
+
+        @Label("Aborted")
+        @Description("Too many retries: the connection was given up")
+        boolean aborted;
+    }
+
+    @Name("tcp.RateLimitStall")
+    @Label("TCP Rate Limit Stall")
+    @Category("TCP")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class RateLimitStall extends Event {
+        @Label("Destination")
+        String destination;
+
+        @Label("Packet Number")
+        long packet;
+    }
+
+    @Name("tcp.DemuxMiss")
+    @Label("TCP Demultiplexer Miss")
+    @Category("TCP")
+    @StackTrace(false)
+    static final class DemuxMiss extends Event {
+        @Label("Local Port")
+        int localPort;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Remote Port")
+        int remotePort;
+
+        @Label("SYN")
+        boolean syn;
+
+        @Label("Action")
+        @Description("reset, dropped (a server not in accept()) or ignored (a RST)")
+        String action;
+    }
+}
@@ -0,0 +1,117 @@
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+//---------------------------------------------------
+//
+// class TCPFastOpen
+//
+// cookies for TCP Fast Open (RFC 7413), which lets a client that has
+// connected to a server before put its first data on the SYN, and the
+// server take that data before the handshake is done. a repeat
+// connection then gets its response one round trip sooner.
+//
+// server side: a cookie is a MAC of the client's address under a key
+// made when the program starts, so the server keeps no state per
+// client. a client asks for one by sending an empty Fast Open option on
+// its SYN, and the SYN-ACK carries it back. data on a later SYN is
+// taken only if the SYN carries a valid cookie; otherwise the data is
+// ignored, acknowledged with the SYN alone and sent again by the client
+// after the handshake.
+//
+// client side: cookies are cached by server address and port, the
+// least recently used dropped past CACHE_SIZE.
+//
+// each TCPStack has its own key and cache. both sides are off unless
+// enabled is set (TCPStart: -DFASTOPEN=true).
+//
+//---------------------------------------------------
+final class TCPFastOpen {
+
+    boolean enabled = false;
+
+    // bytes of MAC in a cookie
+    static final int COOKIE_LENGTH = 8;
+
+    // servers we keep a cookie for
+    static final int CACHE_SIZE = 1024;
+
+    // the server's key, made on first use
+    private Mac mac;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LinkedHashMap<InetSocketAddress, byte[]> cache =
+        new LinkedHashMap<InetSocketAddress, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, byte[]> e) {
+                return size()>CACHE_SIZE;
+            }
+        };
+
+    TCPFastOpen() {
+    }
+
+
+    // the cookie a server gives the client at client
+    byte[] cookie(InetAddress client) {
+        lock.lock();
+        try {
+            if (mac==null) {
+                byte[] key = new byte[16];
+                new SecureRandom().nextBytes(key);
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            }
+            return Arrays.copyOf(mac.doFinal(client.getAddress()), COOKIE_LENGTH);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // true if cookie is the one a server gives the client at client
+    boolean valid(byte[] cookie, InetAddress client) {
+        return cookie.length==COOKIE_LENGTH &&
+            MessageDigest.isEqual(cookie, cookie(client));
+    }
+
+
+    // the cookie cached for a server, or null
+    byte[] cached(InetAddress server, int port) {
+        lock.lock();
+        try {
+            return cache.get(new InetSocketAddress(server, port));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // caches the cookie a server gave us
+    void remember(InetAddress server, int port, byte[] cookie) {
+        lock.lock();
+        try {
+            cache.put(new InetSocketAddress(server, port), cookie);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // drops the cookie for a server that did not take it
+    void forget(InetAddress server, int port) {
+        lock.lock();
+        try {
+            cache.remove(new InetSocketAddress(server, port));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//---------------------------------------------------
+//
+// class TCPHistogram
+//
+// a latency histogram in the manner of HdrHistogram: values (in
+// microseconds) are counted in buckets whose width grows with the
+// value, so that any recorded value is known to within 1/SUB_BUCKETS
+// of itself (under 2%) from 1 microsecond up to MAX_VALUE (about 19
+// hours, larger values count as MAX_VALUE), in a fixed 16 KB.
+//
+// record() takes no lock and allocates nothing, so it can be called on
+// every segment by any thread. snapshot() copies the counts for
+// percentiles; interval() does the same and starts the counts over,
+// for a dashboard that wants each minute (say) on its own. a value
+// recorded while interval() runs lands in this interval or the next,
+// never in both or neither.
+//
+// the bucket for value v: below 2*SUB_BUCKETS, v itself. above, with
+// e the number of low bits v has beyond the top log2(2*SUB_BUCKETS),
+// the top bits (v >>> e, which lies between SUB_BUCKETS and
+// 2*SUB_BUCKETS) offset by e*SUB_BUCKETS.
+//
+//---------------------------------------------------
+final class TCPHistogram {
+
+    // buckets per doubling of the value, a power of two
+    static final int SUB_BUCKETS = 64;
+    private static final int SUB_BITS = 6;
+
+    // the largest value told apart from larger ones
+    static final long MAX_VALUE = (1L<<36)-1;
+
+    private static final int BUCKETS = bucket(MAX_VALUE)+1;
+
+    final String name;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    TCPHistogram(String name) {
+        this.name = name;
+    }
+
+
+    // counts one value, in microseconds
+    void record(long micros) {
+        if (micros<0)
+            micros = 0;
+        else if (micros>MAX_VALUE)
+            micros = MAX_VALUE;
+        counts.incrementAndGet(bucket(micros));
+        sum.addAndGet(micros);
+        long m = max.get();
+        while (micros>m && !max.compareAndSet(m, micros))
+            m = max.get();
+    }
+
+    // counts the time since start, a System.nanoTime()
+    void recordSince(long start) {
+        record((System.nanoTime()-start)/1000);
+    }
+
+    // the counts so far
+    Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        for (int i=0; i<BUCKETS; i++)
+            c[i] = counts.get(i);
+        return new Snapshot(name, c, sum.get(), max.get());
+    }
+
+    // the counts since the last interval() (or since the start), which
+    // start over from zero
+    Snapshot interval() {
+        long[] c = new long[BUCKETS];
+        for (int i=0; i<BUCKETS; i++)
+            c[i] = counts.getAndSet(i, 0);
+        return new Snapshot(name, c, sum.getAndSet(0), max.getAndSet(0));
+    }
+
+    static int bucket(long v) {
+        int e = 63-Long.numberOfLeadingZeros(v)-SUB_BITS;
+        if (e<=0)
+            return (int) v;
+        return e*SUB_BUCKETS+(int) (v>>>e);
+    }
+
+    // the smallest value counted in bucket i
+    static long lowest(int i) {
+        if (i<2*SUB_BUCKETS)
+            return i;
+        int e = i/SUB_BUCKETS-1;
+        return (long) (i-e*SUB_BUCKETS)<<e;
+    }
+
+    // the largest value counted in bucket i
+    static long highest(int i) {
+        if (i<2*SUB_BUCKETS)
+            return i;
+        int e = i/SUB_BUCKETS-1;
+        return lowest(i)+(1L<<e)-1;
+    }
+
+
+    // a copy of the counts at one time, for reporting
+    static final class Snapshot {
+        final String name;
+        private final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+
+        private Snapshot(String name, long[] counts, long sum, long max) {
+            this.name = name;
+            this.counts = counts;
+            long n = 0;
+            for (long x : counts)
+                n += x;
+            this.count = n;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        // the value at or below which p percent of the values fall, in
+        // microseconds, to within a bucket; 0 with no values
+        long percentile(double p) {
+            if (count==0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(p/100*count));
+            long seen = 0;
+            for (int i=0; i<counts.length; i++) {
+                seen += counts[i];
+                if (seen>=rank)
+                    return Math.min(highest(i), max);
+            }
+            return max;
+        }
+
+        double mean() {
+            return count==0 ? 0 : (double) sum/count;
+        }
+
+        // one line of JSON, in milliseconds
+        public String toString() {
+            return String.format(Locale.ROOT,
+                                 "{\"name\":\"%s\",\"count\":%d,\"mean_ms\":%.3f,"+
+                                 "\"p50_ms\":%.3f,\"p90_ms\":%.3f,\"p99_ms\":%.3f,"+
+                                 "\"p999_ms\":%.3f,\"max_ms\":%.3f}",
+                                 name, count, mean()/1000,
+                                 percentile(50)/1000.0, percentile(90)/1000.0,
+                                 percentile(99)/1000.0, percentile(99.9)/1000.0,
+                                 max/1000.0);
+        }
+    }
+}
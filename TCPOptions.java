@@ -0,0 +1,245 @@
+//---------------------------------------------------
+//
+// class TCPOptions
+//
+// reads and writes the options part of a TCP header (the bytes between
+// the 20 byte fixed header and the data).
+//
+// the options we understand are kept as plain fields of the TCPPacket
+// itself (mss, windowScale, sackPermitted, timestamps, SACK blocks and
+// the Fast Open cookie),
+// so a packet without SACK blocks costs no extra allocation at all.
+// everything here is static.
+//
+// layout written, always padded with NOPs to a multiple of 4 bytes:
+//   MSS             kind 2, len 4,  16 bit segment size    (SYN only)
+//   window scale    kind 3, len 3,  shift count            (SYN only)
+//   SACK permitted  kind 4, len 2                          (SYN only)
+//   SACK            kind 5, len 2+8n, n left/right edges
+//   timestamps      kind 8, len 10, TSval and TSecr
+//   Fast Open       kind 34, len 2+n, cookie of n bytes,   (SYN only)
+//                   n 0 (a request) or 4 to 16, RFC 7413
+//
+//---------------------------------------------------
+final class TCPOptions {
+
+    // option kinds
+    public static final int END = 0;
+    public static final int NOP = 1;
+    public static final int MSS = 2;
+    public static final int WSCALE = 3;
+    public static final int SACK_PERMITTED = 4;
+    public static final int SACK = 5;
+    public static final int TIMESTAMP = 8;
+    public static final int FAST_OPEN = 34;
+
+    // Fast Open cookie sizes (RFC 7413)
+    public static final int MIN_COOKIE = 4;
+    public static final int MAX_COOKIE = 16;
+
+    // largest shift allowed for the window scale option (RFC 7323)
+    public static final int MAX_WSCALE = 14;
+
+    // no more than 4 SACK blocks fit in 40 bytes of options, and only 3
+    // if timestamps are on too.
+    public static final int MAX_SACK_BLOCKS = 4;
+
+    // the options area is at most 40 bytes (header length is 4 bits of
+    // 32 bit words, so 60 bytes, minus the fixed 20).
+    public static final int MAX_LENGTH = 40;
+
+    private TCPOptions() {
+    }
+
+
+    // parses the options in buf[off..end) into p. unknown options are
+    // skipped; a malformed length ends parsing, keeping what was read
+    // so far.
+    static void parse(TCPPacket p, byte[] buf, int off, int end) {
+        int i = off;
+        while (i<end) {
+            int kind = buf[i] & 0xff;
+            if (kind==END)
+                return;
+            if (kind==NOP) {
+                i++;
+                continue;
+            }
+            if (i+1>=end)
+                return;
+            int len = buf[i+1] & 0xff;
+            if (len<2 || i+len>end)
+                return;
+            switch (kind) {
+            case MSS:
+                if (len==4)
+                    p.mss = getShort(buf, i+2);
+                break;
+            case WSCALE:
+                if (len==3)
+                    p.windowScale = Math.min(buf[i+2] & 0xff, MAX_WSCALE);
+                break;
+            case SACK_PERMITTED:
+                if (len==2)
+                    p.sackPermitted = true;
+                break;
+            case SACK:
+                int n = Math.min((len-2)/8, MAX_SACK_BLOCKS);
+                if (n>0) {
+                    // a packet parsed again and again keeps its array
+                    if (p.sackBlocks==null || p.sackBlocks.length<2*n)
+                        p.sackBlocks = new int[2*MAX_SACK_BLOCKS];
+                    for (int b=0; b<2*n; b++)
+                        p.sackBlocks[b] = getInt(buf, i+2+4*b);
+                    p.sackCount = n;
+                }
+                break;
+            case TIMESTAMP:
+                if (len==10) {
+                    p.hasTimestamp = true;
+                    p.tsVal = getInt(buf, i+2);
+                    p.tsEcr = getInt(buf, i+6);
+                }
+                break;
+            case FAST_OPEN:
+                if (len==2 || (len-2>=MIN_COOKIE && len-2<=MAX_COOKIE)) {
+                    p.fastOpenCookie = new byte[len-2];
+                    System.arraycopy(buf, i+2, p.fastOpenCookie, 0, len-2);
+                }
+                break;
+            default:
+                // not ours, skip it
+            }
+            i += len;
+        }
+    }
+
+
+    // returns the number of bytes write() will produce for p, a
+    // multiple of 4.
+    static int length(TCPPacket p) {
+        int len = 0;
+        if (p.mss>=0)
+            len += 4;
+        if (p.windowScale>=0)
+            len += 4;                // NOP + 3
+        if (p.hasTimestamp)
+            len += 12;               // NOP NOP + 10, or SACK_PERMITTED + 10
+        else if (p.sackPermitted)
+            len += 4;                // NOP NOP + 2
+        len += fastOpenLength(p);
+        int n = sackBlocksThatFit(p);
+        if (n>0)
+            len += 4 + 8*n;
+        return len;
+    }
+
+
+    // writes the options of p at buf[off], returns the offset after
+    // them. the caller must have room for length(p) bytes.
+    static int write(TCPPacket p, byte[] buf, int off) {
+        int i = off;
+        if (p.mss>=0) {
+            buf[i++] = (byte) MSS;
+            buf[i++] = 4;
+            putShort(buf, i, p.mss);
+            i += 2;
+        }
+        if (p.windowScale>=0) {
+            buf[i++] = (byte) NOP;
+            buf[i++] = (byte) WSCALE;
+            buf[i++] = 3;
+            buf[i++] = (byte) p.windowScale;
+        }
+        if (p.hasTimestamp) {
+            // SACK permitted takes the place of the two NOPs, the usual
+            // SYN layout
+            if (p.sackPermitted) {
+                buf[i++] = (byte) SACK_PERMITTED;
+                buf[i++] = 2;
+            }
+            else {
+                buf[i++] = (byte) NOP;
+                buf[i++] = (byte) NOP;
+            }
+            buf[i++] = (byte) TIMESTAMP;
+            buf[i++] = 10;
+            putInt(buf, i, p.tsVal);
+            putInt(buf, i+4, p.tsEcr);
+            i += 8;
+        }
+        else if (p.sackPermitted) {
+            buf[i++] = (byte) NOP;
+            buf[i++] = (byte) NOP;
+            buf[i++] = (byte) SACK_PERMITTED;
+            buf[i++] = 2;
+        }
+        if (p.fastOpenCookie!=null) {
+            // NOPs in front keep the end aligned
+            int cookie = p.fastOpenCookie.length;
+            for (int pad=fastOpenLength(p)-2-cookie; pad>0; pad--)
+                buf[i++] = (byte) NOP;
+            buf[i++] = (byte) FAST_OPEN;
+            buf[i++] = (byte) (2+cookie);
+            System.arraycopy(p.fastOpenCookie, 0, buf, i, cookie);
+            i += cookie;
+        }
+        int n = sackBlocksThatFit(p);
+        if (n>0) {
+            buf[i++] = (byte) NOP;
+            buf[i++] = (byte) NOP;
+            buf[i++] = (byte) SACK;
+            buf[i++] = (byte) (2+8*n);
+            for (int b=0; b<2*n; b++, i+=4)
+                putInt(buf, i, p.sackBlocks[b]);
+        }
+        return i;
+    }
+
+
+    // SACK blocks are dropped from the end if the other options leave
+    // no room for them.
+    private static int sackBlocksThatFit(TCPPacket p) {
+        if (p.sackCount==0)
+            return 0;
+        int used = 0;
+        if (p.mss>=0)
+            used += 4;
+        if (p.windowScale>=0)
+            used += 4;
+        if (p.hasTimestamp)
+            used += 12;
+        else if (p.sackPermitted)
+            used += 4;
+        used += fastOpenLength(p);
+        return Math.max(0, Math.min(p.sackCount, (MAX_LENGTH-used-4)/8));
+    }
+
+    // the Fast Open option with its padding, 0 if p has none
+    private static int fastOpenLength(TCPPacket p) {
+        if (p.fastOpenCookie==null)
+            return 0;
+        return (2+p.fastOpenCookie.length+3) & ~3;
+    }
+
+    static int getShort(byte[] b, int i) {
+        return ((b[i] & 0xff) << 8) | (b[i+1] & 0xff);
+    }
+
+    static int getInt(byte[] b, int i) {
+        return ((b[i] & 0xff) << 24) | ((b[i+1] & 0xff) << 16) |
+            ((b[i+2] & 0xff) << 8) | (b[i+3] & 0xff);
+    }
+
+    static void putShort(byte[] b, int i, int v) {
+        b[i] = (byte) (v>>8);
+        b[i+1] = (byte) v;
+    }
+
+    static void putInt(byte[] b, int i, int v) {
+        b[i] = (byte) (v>>24);
+        b[i+1] = (byte) (v>>16);
+        b[i+2] = (byte) (v>>8);
+        b[i+3] = (byte) v;
+    }
+}
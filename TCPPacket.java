@@ -1,4 +1,6 @@
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 //---------------------------------------------------
 //
@@ -12,9 +14,18 @@ import java.net.InetAddress;
 // either you have all the info you need to initialize a packet, or you
 // have a byte[] to read in.
 //
-// This implementation of TCPPacket will ignore options in the header,
-// and will also ignore the checksum, push flag, urgent flag and urgent
-// pointer.
+// Header options are read and written by TCPOptions; the ones we
+// understand (MSS, window scale, SACK permitted, SACK, timestamps and
+// the Fast Open cookie)
+// are kept as fields here. The checksum is filled in by setChecksum()
+// after the packet is written, see TCPChecksum.
+//
+// A packet to be sent can also carry its data as a view of a send
+// ring (a ByteBuffer, possibly direct) instead of an array. Such a
+// packet is never copied into one datagram buffer: writeHeader() puts
+// the header in front and slices() hands the ring bytes to a gathering
+// write. This implementation of
+// TCPPacket will ignore the push flag, urgent flag and urgent pointer.
 //
 //---------------------------------------------------
 
@@ -45,8 +56,18 @@ class TCPPacket {
     public static final int BYTE4 = 0xff000000;
 
 
-    // constant for everyone to know the maximum possible packet size
+    // constant for everyone to know the default packet size (data only,
+    // the header comes on top of it)
     public static final int MAX_PACKET_SIZE = 1000; // in bytes
+
+    // smallest possible TCP header, the fixed part, and the largest,
+    // fixed part plus options
+    public static final int MIN_HEADER_SIZE = 20;
+    public static final int MAX_HEADER_SIZE = MIN_HEADER_SIZE + TCPOptions.MAX_LENGTH;
+
+    // largest payload of a UDP datagram, which carries the whole segment
+    public static final int MAX_UDP_PAYLOAD = 65507;
+
     
     // TCP header things to keep in the packet
     InetAddress sourceAddr;
@@ -60,40 +81,100 @@ class TCPPacket {
     boolean finFlag;
     int windowSize;
 
+    // options, see TCPOptions. mss and windowScale are -1 if absent.
+    int mss = -1;
+    int windowScale = -1;
+    boolean sackPermitted;
+    boolean hasTimestamp;
+    int tsVal;
+    int tsEcr;
+    int[] sackBlocks; // left, right edge pairs
+    int sackCount;
+    byte[] fastOpenCookie; // empty for a cookie request, null if absent
+
     
     // the data part of the TCP packet
     // be sure to NOT read possible header options into the data buf.
+    //
+    // the data is either all of data[], or, for a packet made with the
+    // view constructor, dataLength bytes of ring starting at dataOffset
+    // and wrapping around to 0 at its capacity. ring is shared with its
+    // creator (the send ring of a connection).
     protected byte[] data;
+    protected ByteBuffer ring;
+    protected int dataOffset;
+    protected int dataLength;
+
+    // duplicates of ring whose position and limit select our bytes for
+    // a gathering write, before and after the wrap. see slices().
+    private ByteBuffer head;
+    private ByteBuffer tail;
+
+    // one's complement sum of our bytes of the ring, -1 until known.
+    // kept by the sender with each unacknowledged segment, so that a
+    // retransmission does not sum the data again. see setData().
+    private int ringSum = -1;
 
     
     // private because we dont want them to be messed with accidentally
     private int headerLength;
-    private int checksum;  // we dont bother with this quite yet
+    private int checksum;
+
+    // the header as last sent and who it went to, so that a resend
+    // with only header fields changed can update the checksum instead
+    // of summing the data again. see setChecksum().
+    private byte[] sentHeader;
+    private InetAddress sentTo;
 
     
     // creates a TCPPacket from the real buffer of data... this
     // constructor will generally be used when RECEIVING data, and
-    // formulating it into a packet.
+    // formulating it into a packet. the data is not copied: it stays a
+    // part of packet[].
     public TCPPacket( byte[] packet, InetAddress sender ) {
+        parse(packet, 0, packet.length, sender);
+    }
+
+    // an empty packet, for parse()
+    TCPPacket() {
+    }
+
+
+    // whether packet[off..off+len) holds a whole TCP header, which
+    // parse() needs: at least MIN_HEADER_SIZE bytes, and a header
+    // length no shorter than that and no longer than the datagram.
+    static boolean fits( byte[] packet, int off, int len ) {
+        if (len<MIN_HEADER_SIZE)
+            return false;
+        int header = ((packet[off+12] & BYTE1) >> 4)*4;
+        return header>=MIN_HEADER_SIZE && header<=len;
+    }
+
+    // reads the len bytes of packet[] at off into this packet, replacing
+    // everything it held before, so that a receiver can use one packet
+    // for every segment. the data is left where it is, as dataLength
+    // bytes of data[] at dataOffset, and is only good for as long as
+    // packet[] is. the bytes must hold a header, see fits().
+    void parse( byte[] packet, int off, int len, InetAddress sender ) {
         sourceAddr = sender;
-        sourcePort = (((char)((char)packet[0] << 8)) & BYTE2) |
-            (((char)(packet[1])) & BYTE1);
-        destPort = (((char)((char)packet[2] << 8)) & BYTE2) |
-            (((char)(packet[3])) & BYTE1);
+        sourcePort = (((char)((char)packet[off] << 8)) & BYTE2) |
+            (((char)(packet[off+1])) & BYTE1);
+        destPort = (((char)((char)packet[off+2] << 8)) & BYTE2) |
+            (((char)(packet[off+3])) & BYTE1);
         
-        seqNum = (((int)packet[4] << 24) & BYTE4) |
-            (((int)packet[5] << 16) & BYTE3) |
-            (((int)packet[6] << 8) & BYTE2)|
-            (((int)packet[7]) & BYTE1);
-        ackNum = (((int)packet[8] << 24) & BYTE4) |
-            (((int)packet[9] << 16) & BYTE3) |
-            (((int)packet[10] << 8) & BYTE2)|
-            (((int)packet[11]) & BYTE1);
+        seqNum = (((int)packet[off+4] << 24) & BYTE4) |
+            (((int)packet[off+5] << 16) & BYTE3) |
+            (((int)packet[off+6] << 8) & BYTE2)|
+            (((int)packet[off+7]) & BYTE1);
+        ackNum = (((int)packet[off+8] << 24) & BYTE4) |
+            (((int)packet[off+9] << 16) & BYTE3) |
+            (((int)packet[off+10] << 8) & BYTE2)|
+            (((int)packet[off+11]) & BYTE1);
         
         // header length is only 4 bits in the TCP header
         // this number represents how many 32-bit words in the header...
         // i.e. 4 bytes to a word  (hence the *4 at the end)
-        headerLength = (packet[12] >> 4)*4;
+        headerLength = ((packet[off+12] & BYTE1) >> 4)*4;
 
         // ignore the reserved bits
         // ignore the URG flag
@@ -102,36 +183,50 @@ class TCPPacket {
         // the next 4 statements use bitmasking so we can see the value
         // of one bit, for the TCP flags
         
-        if ((packet[13] & BIT5)==0)  ackFlag=false;
+        if ((packet[off+13] & BIT5)==0)  ackFlag=false;
         else ackFlag=true;
 
-        if ((packet[13] & BIT3)==0)  rstFlag=false;
+        if ((packet[off+13] & BIT3)==0)  rstFlag=false;
         else rstFlag=true;
 
-        if ((packet[13] & BIT2)==0)  synFlag=false;
+        if ((packet[off+13] & BIT2)==0)  synFlag=false;
         else synFlag=true;
 
-        if ((packet[13] & BIT1)==0)  finFlag=false;
+        if ((packet[off+13] & BIT1)==0)  finFlag=false;
         else finFlag=true;
 
 
-        windowSize = (((char)((char)packet[14] << 8)) & BYTE2) |
-            (((char)(packet[15])) & BYTE1);
-        checksum = (((char)((char)packet[16] << 8)) & BYTE2) |
-            (((char)(packet[17])) & BYTE1);
-
-
-        // copy the data, if any
-        int j=0;
-        int dataSize=(packet.length-headerLength);
-        if (dataSize>0)
-            data = new byte[dataSize];
-        else
+        windowSize = (((char)((char)packet[off+14] << 8)) & BYTE2) |
+            (((char)(packet[off+15])) & BYTE1);
+        checksum = (((char)((char)packet[off+16] << 8)) & BYTE2) |
+            (((char)(packet[off+17])) & BYTE1);
+
+        // options sit between the fixed header and the data, and are
+        // all absent until found there
+        mss = -1;
+        windowScale = -1;
+        sackPermitted = false;
+        hasTimestamp = false;
+        tsVal = 0;
+        tsEcr = 0;
+        sackCount = 0;
+        fastOpenCookie = null;
+        TCPOptions.parse(this, packet, off+20, off+Math.min(headerLength, len));
+
+
+        // the data, if any, is the rest of packet[]
+        ring = null;
+        sentTo = null;
+        int dataSize=(len-headerLength);
+        if (dataSize>0) {
+            data = packet;
+            dataOffset = off+headerLength;
+            dataLength = dataSize;
+        }
+        else {
             data = null;
-        for( int i=headerLength; i<packet.length; i++,j++) {
-            // starting at the end of the TCP header, and copying till
-            // the end of this byte[], we have our data.
-            data[j] = packet[i];
+            dataOffset = 0;
+            dataLength = 0;
         }
     }
 
@@ -149,9 +244,11 @@ class TCPPacket {
         this.synFlag = synFlag;
         this.finFlag = finFlag;
         this.windowSize = windowSize;
+	// data is taken as is, not copied, so it must not change until
+	// the packet is sent
 	if(data != null){
-	  this.data = new byte[data.length];
-	  System.arraycopy(data, 0, this.data, 0, data.length);
+	  this.data = data;
+	  this.dataLength = data.length;
 	}
 	else
 	  this.data = null;
@@ -161,17 +258,150 @@ class TCPPacket {
         
         this.checksum = 0; // WILL SET WHEN WE WRITE THE PACKET.
     }
+
+
+    // makes this packet what the constructor above makes with no data,
+    // for the same ports: no RST, no options, no data. a sender reuses
+    // one packet this way for its ACKs and other control segments.
+    void reset( int seqNum, int ackNum, boolean ackFlag, boolean synFlag,
+                boolean finFlag, int windowSize ) {
+        this.seqNum = seqNum;
+        this.ackNum = ackNum;
+        this.ackFlag = ackFlag;
+        this.synFlag = synFlag;
+        this.finFlag = finFlag;
+        this.windowSize = windowSize;
+        rstFlag = false;
+        mss = -1;
+        windowScale = -1;
+        sackPermitted = false;
+        hasTimestamp = false;
+        tsVal = 0;
+        tsEcr = 0;
+        sackCount = 0;
+        fastOpenCookie = null;
+        data = null;
+        ring = null;
+        dataOffset = 0;
+        dataLength = 0;
+        ringSum = -1;
+        sentTo = null;
+        headerLength = 20;
+        checksum = 0;
+    }
+
+
+    // creates a TCPPacket whose data is a view of len bytes of ring,
+    // starting at index off and wrapping around at its capacity. the
+    // ring's position and limit are left alone. nothing is ever copied
+    // out of the ring, so those bytes must not change until the packet
+    // has been sent.
+    public TCPPacket( int sourcePort, int destPort, int seqNum, int ackNum,
+                      boolean ackFlag, boolean synFlag, boolean finFlag,
+                      int windowSize, ByteBuffer ring, int off, int len) {
+        this(sourcePort, destPort, seqNum, ackNum, ackFlag, synFlag,
+             finFlag, windowSize, null);
+        setData(ring, off, len);
+    }
+
+
+    // creates the RST answering a segment that belongs to no connection
+    // (RFC 793, "Reset Generation"). it takes its sequence number from
+    // the segment's ACK; without one, it acknowledges the segment. a
+    // RST itself is never answered, so p must not be one.
+    static TCPPacket resetFor(TCPPacket p) {
+        TCPPacket rst;
+        if (p.ackFlag)
+            rst = new TCPPacket(p.destPort, p.sourcePort, p.ackNum, 0,
+                                false, false, false, 0, null);
+        else {
+            int len = p.dataLength + (p.synFlag ? 1 : 0) + (p.finFlag ? 1 : 0);
+            rst = new TCPPacket(p.destPort, p.sourcePort, 0, p.seqNum+len,
+                                true, false, false, 0, null);
+        }
+        rst.rstFlag = true;
+        return rst;
+    }
+
+
+    // points this packet's data at a view of ring (see above), so that
+    // one packet can be reused for a run of segments.
+    void setData(ByteBuffer ring, int off, int len) {
+        setData(ring, off, len, -1);
+    }
+
+    // same, for data whose sum (from getRingSum() after an earlier send
+    // of the same bytes) is already known, or -1
+    void setData(ByteBuffer ring, int off, int len, int sum) {
+        if (ring!=this.ring) {
+            head = ring.duplicate();
+            tail = ring.duplicate();
+        }
+        this.ring = len>0 ? ring : null;
+        data = null;
+        dataOffset = off;
+        dataLength = len>0 ? len : 0;
+        sentTo = null; // new data, the old checksum is no use
+        ringSum = sum;
+    }
+
+    // true if the data is a view of a ring, to be sent with slices()
+    public boolean isView() {
+        return ring!=null;
+    }
+
+    // sets out[at], and out[at+1] if the data wraps, to buffers over
+    // this packet's bytes of the ring, ready for a gathering write, and
+    // returns how many it set.
+    int slices(ByteBuffer[] out, int at) {
+        int first = Math.min(dataLength, ring.capacity()-dataOffset);
+        head.clear().position(dataOffset).limit(dataOffset+first);
+        out[at] = head;
+        if (first==dataLength)
+            return 1;
+        tail.clear().limit(dataLength-first);
+        out[at+1] = tail;
+        return 2;
+    }
+
+
+    // the size of the whole packet when written, header included
+    public int getLength() {
+        return 20 + TCPOptions.length(this) + dataLength;
+    }
     
     
     // returns the whole packet as an array.  this array can then be
     // used in a DatagramPacket, for example.
     public byte[] getBufferPacket () {
-        // TCP Header that we create will ALWAYS be 20 bytes
-        byte packet[];
-        if (data==null)
-            packet = new byte[20];
-        else
-            packet = new byte[20+data.length];
+        byte packet[] = new byte[getLength()];
+        writeTo(packet);
+        return(packet);
+    }
+
+
+    // writes the whole packet at the start of packet[], which must hold
+    // getLength() bytes, and returns its length.
+    public int writeTo(byte[] packet) {
+        writeHeader(packet);
+
+        // add data to packet, if needed
+        if (ring!=null) {
+            int first = Math.min(dataLength, ring.capacity()-dataOffset);
+            ring.get(dataOffset, packet, headerLength, first);
+            ring.get(0, packet, headerLength+first, dataLength-first);
+        }
+        else if (data!=null)
+            System.arraycopy(data, dataOffset, packet, headerLength, dataLength);
+
+        return(headerLength+dataLength);
+    }
+
+    // writes only the header, options included, at the start of
+    // packet[] and returns its length.
+    public int writeHeader(byte[] packet) {
+        // TCP Header is 20 bytes, plus whatever options we carry
+        headerLength = 20 + TCPOptions.length(this);
 
         int flags = 0;
         if (ackFlag)
@@ -200,25 +430,98 @@ class TCPPacket {
         packet[13] = (byte)  flags;
         packet[14] = (byte) (windowSize>>8);
         packet[15] = (byte)  windowSize;
-        packet[16] = (byte) (checksum>>8);
-        packet[17] = (byte)  checksum;
+        packet[16] = 0; // see setChecksum()
+        packet[17] = 0;
         packet[18] = 0;
         packet[19] = 0;
 
-        
-        // add data to packet, if needed
-        if (data!=null) {
-            for (int i=0; i<data.length; i++) {
-                packet[i+20] = data[i];
+        TCPOptions.write(this, packet, 20);
+
+        return(headerLength);
+    }
+
+    // computes the checksum of this packet, for sending to peer, and
+    // puts it in place in packet[]. the packet must have just been
+    // written there by writeTo(), or by writeHeader() if its data is a
+    // view of a ring, which is summed where it is.
+    //
+    // if this same packet (same data, same header length) was sent to
+    // the same peer before, as on a retransmission, only the header
+    // words that changed since then are folded into the old checksum
+    // (RFC 1624), so the data is not summed again.
+    public void setChecksum(byte[] packet, InetAddress peer) {
+        if (peer.equals(sentTo) && sentHeader.length==headerLength) {
+            int cs = checksum;
+            for (int i=0; i<headerLength; i+=2) {
+                if (i==16)
+                    continue; // the checksum field itself
+                int was = ((sentHeader[i] & BYTE1)<<8) | (sentHeader[i+1] & BYTE1);
+                int now = ((packet[i] & BYTE1)<<8) | (packet[i+1] & BYTE1);
+                if (was!=now)
+                    cs = TCPChecksum.update(cs, was, now);
             }
+            checksum = cs;
         }
+        else {
+            long sum = TCPChecksum.sum(packet, 0, headerLength, 0);
+            if (ring!=null) {
+                if (ringSum<0)
+                    ringSum = sumRing();
+                sum += ringSum;
+            }
+            else
+                sum = TCPChecksum.sum(packet, headerLength, dataLength, sum);
+            checksum = TCPChecksum.finish(sum, headerLength+dataLength, peer);
+            // summing a bare header again costs less than keeping a
+            // copy of it, so only packets with data remember theirs
+            if (dataLength==0) {
+                sentTo = null;
+            }
+            else {
+                if (sentHeader==null || sentHeader.length!=headerLength)
+                    sentHeader = new byte[headerLength];
+                sentTo = peer;
+            }
+        }
+        if (sentTo!=null)
+            System.arraycopy(packet, 0, sentHeader, 0, headerLength);
+        packet[16] = (byte) (checksum>>8);
+        packet[17] = (byte)  checksum;
+    }
 
-        return(packet);
+    // the sum of the ring data, once the packet has been checksummed;
+    // -1 before that
+    int getRingSum() {
+        return ringSum;
+    }
+
+    // one's complement sum of our bytes of the ring, in place
+    private int sumRing() {
+        int first = Math.min(dataLength, ring.capacity()-dataOffset);
+        int s = TCPChecksum.fold(TCPChecksum.sum(ring, dataOffset, first, 0));
+        if (first<dataLength)
+            s = TCPChecksum.join(s, first, TCPChecksum.fold
+                                 (TCPChecksum.sum(ring, 0, dataLength-first, 0)));
+        return s;
     }
 
     // returns ONLY the data part of the packet
     // is possible that it may return null.
     public byte[] getData() {
+        if (ring!=null) {
+            // a view: hand out a copy of just our bytes
+            byte[] copy = new byte[dataLength];
+            int first = Math.min(dataLength, ring.capacity()-dataOffset);
+            ring.get(dataOffset, copy, 0, first);
+            ring.get(0, copy, first, dataLength-first);
+            return(copy);
+        }
+        if (data!=null && (dataOffset!=0 || dataLength!=data.length)) {
+            // part of a received datagram: a copy of just our bytes
+            byte[] copy = new byte[dataLength];
+            System.arraycopy(data, dataOffset, copy, 0, dataLength);
+            return(copy);
+        }
         return(data);
     }
 
@@ -237,6 +540,8 @@ class TCPPacket {
             flags = flags+"\n synFlag IS TRUE";
         if (finFlag)
             flags = flags+"\n finFlag IS TRUE";
+        if (rstFlag)
+            flags = flags+"\n rstFlag IS TRUE";
 
 
         String toReturn =
@@ -247,12 +552,19 @@ class TCPPacket {
             "\n ACK # = "+ackNum+
             flags+
             "\n windowSize = "+windowSize+
+            "\n mss = "+mss+
+            "\n windowScale = "+windowScale+
+            "\n sackPermitted = "+sackPermitted+
+            "\n sackCount = "+sackCount+
+            "\n timestamp = "+(hasTimestamp ? tsVal+"/"+tsEcr : "none")+
+            "\n fastOpenCookie = "+(fastOpenCookie==null ? "none" :
+                                    fastOpenCookie.length+" bytes")+
             "\n ----------------- "+
             "\n checksum = "+checksum+
             "\n headerLength = "+headerLength;
-        if (data!=null)
+        if (dataLength>0)
             toReturn = toReturn +
-                "\n datalen = "+data.length;
+                "\n datalen = "+dataLength;
         else
             toReturn = toReturn +
                 "\n data is null";
@@ -276,6 +588,9 @@ class TCPPacket {
         if (finFlag)
             flags = flags+"F";
         else flags = flags+" ";
+        if (rstFlag)
+            flags = flags+"R";
+        else flags = flags+" ";
 
         // hopefully this all fits in one line with the remote IP
         // address to spare - that will be output from TCPConnection, i
@@ -284,8 +599,8 @@ class TCPPacket {
         String output = "    "+"srcPort="+ sourcePort+" destPort="+destPort+
             " seq="+seqNum+" ack="+ackNum+flags+" wndSize="+windowSize;
 
-        if (data!=null){
-	  output = output+" datalen="+data.length;
+        if (dataLength>0){
+	  output = output+" datalen="+dataLength;
 	}
         else
 	  output = output+" (no data)";
@@ -297,10 +612,20 @@ class TCPPacket {
     public static void main(String args[]){
         // for DEBUGGING ONLY!!!
 
-        // this little test will test 3 things:
+        // this little test will test these things:
         // (1) the easy packet constructor
         // (2) conversion of packet to byte[]
         // (3) the reading of the byte[] into packet
+        // (4) header options surviving the round trip
+        // (5) the checksum, computed in full and updated on a resend
+        // (6) a view of a direct ring that wraps at an odd offset, summed
+        //     in place, against the same packet written out in full
+        // (7) a SYN with every SYN option and a Fast Open cookie, which
+        //     must all fit in the 40 bytes
+        // (8) the RST for a stray SYN, which must acknowledge it
+        // (9) one packet parsed in place from the middle of a buffer,
+        //     then again with a segment that has no options or data
+        // (10) datagrams too short for the header they claim
 
         byte buf[] = new byte[3];
         buf[0] = 2;
@@ -309,6 +634,13 @@ class TCPPacket {
         
         TCPPacket packet = new
             TCPPacket(12345,23456,1234567,2345678,true,false,true,56,buf);
+        packet.mss = 1460;
+        packet.windowScale = 7;
+        packet.hasTimestamp = true;
+        packet.tsVal = 111111;
+        packet.tsEcr = 222222;
+        packet.sackBlocks = new int[] { 100, 200, 300, 400 };
+        packet.sackCount = 2;
         System.out.println(packet.getDebugOutput());
         System.out.println(packet);
         System.out.println("packet.data[3] = "
@@ -319,8 +651,86 @@ class TCPPacket {
 				       packet.sourceAddr);
         System.out.println(grub.getDebugOutput());
         System.out.println(grub);
+        byte[] grubData = grub.getData();
         System.out.println("grub.data[3] = "
-                           +grub.data[0]+grub.data[1]+grub.data[2]);
+                           +grubData[0]+grubData[1]+grubData[2]);
+        System.out.println("grub.sackBlocks = "
+                           +grub.sackBlocks[0]+"-"+grub.sackBlocks[1]+" "
+                           +grub.sackBlocks[2]+"-"+grub.sackBlocks[3]);
+
+        try {
+            InetAddress peer = InetAddress.getLoopbackAddress();
+            byte wire[] = new byte[MAX_HEADER_SIZE+buf.length];
+            int len = packet.writeTo(wire);
+            packet.setChecksum(wire, peer);
+            System.out.println("checksum = "+packet.checksum+" verifies "+
+                               TCPChecksum.verify(wire, 0, len, peer));
+            packet.ackNum++;
+            packet.windowSize = 1000;
+            len = packet.writeTo(wire);
+            packet.setChecksum(wire, peer);
+            int updated = packet.checksum;
+            wire[16] = 0;
+            wire[17] = 0;
+            System.out.println("updated checksum = "+updated+" full = "+
+                               TCPChecksum.compute(wire, 0, len, peer));
+
+            ByteBuffer ring = ByteBuffer.allocateDirect(11);
+            for (int i=0; i<11; i++)
+                ring.put(i, (byte) (i*37));
+            TCPPacket view = new
+                TCPPacket(12345,23456,1234567,2345678,true,false,false,56,ring,7,9);
+            byte flat[] = new byte[MAX_HEADER_SIZE+9];
+            int hlen = view.writeHeader(wire);
+            view.setChecksum(wire, peer);
+            len = view.writeTo(flat);
+            flat[16] = 0;
+            flat[17] = 0;
+            ByteBuffer[] gather = new ByteBuffer[2];
+            System.out.println("view checksum = "+view.checksum+" full = "+
+                               TCPChecksum.compute(flat, 0, len, peer)+
+                               " header "+hlen+" + slices "+
+                               view.slices(gather, 0));
+
+            TCPPacket syn = new
+                TCPPacket(12345,23456,0,0,false,true,false,65535,buf);
+            syn.mss = 1460;
+            syn.windowScale = 2;
+            syn.sackPermitted = true;
+            syn.hasTimestamp = true;
+            syn.fastOpenCookie = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+            len = syn.writeTo(wire);
+            TCPPacket back = new TCPPacket(Arrays.copyOf(wire, len), peer);
+            System.out.println("syn header "+back.headerLength+" cookie "+
+                               Arrays.toString(back.fastOpenCookie)+
+                               " data "+back.dataLength);
+
+            len = resetFor(back).writeTo(wire);
+            TCPPacket rst = new TCPPacket(Arrays.copyOf(wire, len), peer);
+            System.out.println("reset "+rst+" for syn seq "+back.seqNum+
+                               " len "+back.dataLength);
+
+            byte slab[] = new byte[3+MAX_HEADER_SIZE+buf.length];
+            TCPPacket reused = new TCPPacket();
+            len = syn.writeTo(wire);
+            System.arraycopy(wire, 0, slab, 3, len);
+            reused.parse(slab, 3, len, peer);
+            System.out.println("in place: "+reused+" cookie "+
+                               Arrays.toString(reused.fastOpenCookie)+
+                               " data "+Arrays.toString(reused.getData()));
+            len = resetFor(back).writeTo(wire);
+            System.arraycopy(wire, 0, slab, 3, len);
+            reused.parse(slab, 3, len, peer);
+            System.out.println("reused:   "+reused+" cookie "+
+                               reused.fastOpenCookie+" mss "+reused.mss);
+
+            slab[3+12] = (byte) 0xf0;
+            System.out.println("fits: empty "+fits(slab, 3, 0)+" 19 bytes "+
+                               fits(slab, 3, 19)+" header 60 of 40 "+
+                               fits(slab, 3, 40)+" whole "+fits(wire, 0, len));
+        } catch (Exception e) {
+            System.out.println(e);
+        }
 
                 
     }
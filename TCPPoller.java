@@ -0,0 +1,229 @@
+import java.nio.channels.SelectionKey;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPPoller
+//
+// readiness multiplexing for TCPChannels and TCPServerChannels, so one
+// thread can serve many connections, in the manner of a Selector.
+//
+// a channel is registered with the operations it is interested in
+// (OP_READ, OP_WRITE, OP_CONNECT, OP_ACCEPT, the same bits as
+// SelectionKey). select() waits until at least one registered channel
+// is ready for one of them and leaves those channels in selected().
+// readiness is level triggered: a channel stays selected on every
+// select() until the condition goes away.
+//
+// select() only looks at channels that may have become ready, not at
+// every registered one: a connection calls ready() for its channel
+// whenever its state may have changed (a packet arrived, a timer went
+// off, the application read or wrote), which queues the channel once.
+// select() takes the queue, asks just those channels, and queues the
+// ones that were ready again, for the next select() to ask whether
+// they still are. a busy poller with many idle channels so does work
+// in proportion to the channels that are active.
+//
+// the poller's lock is never held while asking a channel, so a
+// connection calling ready() with its own lock held cannot deadlock
+// against select().
+//
+//---------------------------------------------------
+class TCPPoller {
+
+    public static final int OP_READ = SelectionKey.OP_READ;
+    public static final int OP_WRITE = SelectionKey.OP_WRITE;
+    public static final int OP_CONNECT = SelectionKey.OP_CONNECT;
+    public static final int OP_ACCEPT = SelectionKey.OP_ACCEPT;
+
+    // what a channel must provide to be polled
+    interface Pollable {
+        // the operations the channel is ready for right now
+        int readyOps();
+    }
+
+    // registered channels and their interest sets
+    private final HashMap<Pollable, Integer> interest =
+        new HashMap<Pollable, Integer>();
+
+    // registered channels that may be ready, each at most once, in the
+    // order they were queued
+    private final LinkedHashSet<Pollable> queued = new LinkedHashSet<Pollable>();
+
+    // channels found ready by the last select()
+    private final ArrayList<Pollable> selected = new ArrayList<Pollable>();
+
+    // the queue as taken by one select(), and their interest sets
+    private final ArrayList<Pollable> asking = new ArrayList<Pollable>();
+    private int[] askingOps = new int[16];
+
+    // guards interest, queued and woken; select() waits on changed
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // set by wakeup(), to make select() return
+    private boolean woken;
+
+
+    // registers a channel (or changes its interest set). an empty set
+    // removes it. the channel is asked at the next select() whether it
+    // is ready already.
+    void register(Pollable channel, int ops) {
+        lock.lock();
+        try {
+            if (ops==0) {
+                interest.remove(channel);
+                queued.remove(channel);
+            }
+            else {
+                interest.put(channel, ops);
+                queue(channel);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void cancel(Pollable channel) {
+        lock.lock();
+        try {
+            interest.remove(channel);
+            queued.remove(channel);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // tells the poller channel may have become ready. a channel not
+    // registered (any more) is ignored.
+    void ready(Pollable channel) {
+        lock.lock();
+        try {
+            if (interest.containsKey(channel))
+                queue(channel);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // with lock held
+    private void queue(Pollable channel) {
+        if (queued.add(channel) && queued.size()==1)
+            changed.signalAll();
+    }
+
+    // waits until at least one registered channel is ready, for at most
+    // timeout milliseconds (0 means forever), or until wakeup(), and
+    // returns how many are. they are then in selected().
+    public int select(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            poll();
+            if (!selected.isEmpty()) {
+                clearWakeup();
+                return selected.size();
+            }
+            lock.lock();
+            try {
+                while (queued.isEmpty() && !woken) {
+                    if (timeout==0)
+                        changed.await();
+                    else {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left<=0) {
+                            woken = false;
+                            return 0;
+                        }
+                        changed.await(left, TimeUnit.MILLISECONDS);
+                    }
+                }
+                if (woken && queued.isEmpty()) {
+                    woken = false;
+                    return 0;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // same as select(), but returns at once
+    public int selectNow() {
+        poll();
+        clearWakeup();
+        return selected.size();
+    }
+
+    // takes the queue, asks each channel in it whether it is ready, and
+    // puts the ones that are in selected, and back in the queue.
+    private void poll() {
+        selected.clear();
+        asking.clear();
+        lock.lock();
+        try {
+            if (askingOps.length<queued.size())
+                askingOps = new int[Math.max(queued.size(), 2*askingOps.length)];
+            for (Pollable c : queued) {
+                askingOps[asking.size()] = interest.get(c);
+                asking.add(c);
+            }
+            queued.clear();
+        }
+        finally {
+            lock.unlock();
+        }
+        for (int i=0; i<asking.size(); i++)
+            if ((asking.get(i).readyOps() & askingOps[i])!=0)
+                selected.add(asking.get(i));
+        if (selected.isEmpty())
+            return;
+        // level triggered: ask again next time
+        lock.lock();
+        try {
+            for (Pollable c : selected)
+                if (interest.containsKey(c))
+                    queued.add(c);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // the channels found ready by the last select(), for the thread
+    // that called it
+    public List<Pollable> selected() {
+        return selected;
+    }
+
+    // a wakeup() is used up by the select() it made return, or by the
+    // next one that returns
+    private void clearWakeup() {
+        lock.lock();
+        try {
+            woken = false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // makes a select() in progress (or the next one) return, even with
+    // no channel ready
+    public void wakeup() {
+        lock.lock();
+        try {
+            woken = true;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
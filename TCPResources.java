@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+//---------------------------------------------------
+//
+// class TCPResources
+//
+// keeps count of what a stack's connections hold, so that a program
+// that runs for weeks can see what grows: connections in each state,
+// timer tasks scheduled, the timer thread, the datagram channels sent
+// from, the Demultiplexer's table entries and the buffers in use.
+// report() gives all of it on one line.
+//
+// check() looks for the leaks that build up slowly:
+//   - a connection that has sat in one state for longer than stuckAfter,
+//     other than ESTABLISHED (which may idle for as long as it likes)
+//     and LISTEN. SYN_SENT, SYN_RCVD, FIN_WAIT_1, CLOSING and LAST_ACK
+//     time out well within the default of ten minutes, FIN_WAIT_2 and
+//     TIME_WAIT sooner still, so one found there lost its timer;
+//     CLOSE_WAIT is an application that never closed its socket.
+//   - a CLOSED connection still in the connection table.
+// each is printed ("!!! leak") and counted. check() also closes the
+// datagram channels nothing has sent from since the check before.
+//
+// TCPStack.startLeakCheck() (TCPStart: -DLEAKCHECK=<seconds>) runs
+// check() periodically.
+//
+//---------------------------------------------------
+final class TCPResources {
+
+    private final TCPStack stack;
+
+    // connections in each state, by StudentSocketImpl state number;
+    // CLOSED is not counted, a closed impl holds nothing
+    private final AtomicIntegerArray states =
+        new AtomicIntegerArray(StudentSocketImpl.stateCount());
+
+    // timer tasks scheduled that have neither run nor been cancelled
+    final AtomicInteger timers = new AtomicInteger();
+
+    // how long a connection may sit in a state, see above
+    volatile long stuckAfter = 10 * 60 * 1000L;
+
+    // leaks found by check(), over all checks
+    long leaks;
+
+    TCPResources(TCPStack stack) {
+        this.stack = stack;
+    }
+
+
+    // a connection went from one state to another (state numbers, -1
+    // for CLOSED)
+    void stateChanged(int from, int to) {
+        if (from>=0)
+            states.decrementAndGet(from);
+        if (to>=0)
+            states.incrementAndGet(to);
+    }
+
+    // connections in the given state
+    int inState(int state) {
+        return states.get(state);
+    }
+
+    // one line of JSON with every count
+    public String report() {
+        StringBuilder b = new StringBuilder("{\"connections\":{");
+        String sep = "";
+        int total = 0;
+        for (int i=0; i<StudentSocketImpl.stateCount(); i++) {
+            int n = states.get(i);
+            total += n;
+            if (n!=0) {
+                b.append(sep).append('"').append(StudentSocketImpl.stateName(i))
+                    .append("\":").append(n);
+                sep = ",";
+            }
+        }
+        b.append("},\"live\":").append(total);
+        b.append(",\"timers\":").append(timers.get());
+        b.append(",\"timer_threads\":").append(stack.timerRunning() ? 1 : 0);
+        b.append(",\"datagram_channels\":").append(stack.wrapper.channelCount());
+        b.append(",\"connection_table\":").append(stack.demux.connectionCount());
+        b.append(",\"listening_table\":").append(stack.demux.listenerCount());
+        b.append(",\"server_ports\":").append(stack.demux.serverPortCount());
+        b.append(",\"segments_in_use\":").append(stack.segments.inUse.get());
+        b.append(",\"idle_rings\":").append(stack.buffers.idle());
+        b.append(",\"leaks\":").append(leaks);
+        return b.append('}').toString();
+    }
+
+    // looks for leaks as described above, prints each and returns how
+    // many there are now
+    int check() {
+        long limit = stuckAfter;
+        int found = 0;
+        ArrayList<StudentSocketImpl> all = stack.demux.connections();
+        for (StudentSocketImpl c : all) {
+            String why = c.leaked(limit);
+            if (why!=null) {
+                found++;
+                System.out.println("!!! leak: "+c.describe()+" "+why);
+            }
+        }
+        leaks += found;
+        int closed = stack.wrapper.closeIdleChannels();
+        if (closed>0)
+            System.out.println("!!! closed "+closed+" idle datagram channels");
+        return found;
+    }
+}
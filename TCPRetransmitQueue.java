@@ -0,0 +1,195 @@
+//---------------------------------------------------
+//
+// class TCPRetransmitQueue
+//
+// the segments of one connection that have been sent and not yet
+// acknowledged, in sequence number order: data segments and SYN or FIN
+// segments alike. an entry records only where the segment lies in the
+// sequence space, its flags and the checksum sum of its data; the data
+// itself stays in the send buffer until it is acknowledged, and a
+// retransmission is sent from there.
+//
+// segments are added at the back as they are first sent, and dropped
+// from the front as cumulative ACKs come in (an ACK in the middle of a
+// segment trims it). SACK blocks mark entries the peer already holds,
+// so a retransmission can skip them.
+//
+// the entries are parallel int arrays used as a ring that doubles when
+// full, so adding and trimming do not allocate. sequence numbers are
+// compared by subtraction, so they may wrap.
+//
+//---------------------------------------------------
+class TCPRetransmitQueue {
+
+    // entry flags
+    static final int SYN = 1;
+    static final int FIN = 2;
+    static final int ACK = 4;    // the segment was sent with ACK set
+    static final int SACKED = 8; // the peer has it, per SACK
+
+    private int[] seq;
+    private int[] len;
+    private int[] flags;
+    private int[] sum;  // one's complement sum of the data, -1 if unknown
+
+    // the oldest entry is at head; capacity is a power of 2
+    private int head;
+    private int count;
+
+
+    // small to start with, since most connections are idle most of the
+    // time; a busy one soon grows it to its window's worth
+    TCPRetransmitQueue() {
+        this(4);
+    }
+
+    TCPRetransmitQueue(int capacity) {
+        int c = Integer.highestOneBit(Math.max(capacity-1, 1))<<1;
+        seq = new int[c];
+        len = new int[c];
+        flags = new int[c];
+        sum = new int[c];
+    }
+
+
+    // adds a segment sent for the first time. it must start where the
+    // last one ended.
+    void add(int s, int l, int f, int dataSum) {
+        if (count==seq.length)
+            grow();
+        int i = (head+count) & (seq.length-1);
+        seq[i] = s;
+        len[i] = l;
+        flags[i] = f;
+        sum[i] = dataSum;
+        count++;
+    }
+
+    // drops everything below ack, the peer's cumulative acknowledgment
+    void trim(int ack) {
+        while (count>0) {
+            int s = seq[head];
+            int e = s+len[head];
+            if (e-ack<=0) {
+                head = (head+1) & (seq.length-1);
+                count--;
+            }
+            else {
+                if (s-ack<0) {
+                    // acknowledged part way through
+                    len[head] = e-ack;
+                    seq[head] = ack;
+                    sum[head] = -1;
+                }
+                return;
+            }
+        }
+    }
+
+    // marks the entries lying wholly inside [left, right) as SACKed
+    void sack(int left, int right) {
+        int i = find(left);
+        if (i<0)
+            i = 0;
+        for (; i<count; i++) {
+            int p = phys(i);
+            if (seq[p]-left<0)
+                continue;
+            if (seq[p]+len[p]-right>0)
+                return;
+            flags[p] |= SACKED;
+        }
+    }
+
+    // the index of the entry holding sequence number s, or -1. entries
+    // are sorted and contiguous, so this is a binary search on the
+    // distance from the first one.
+    int find(int s) {
+        if (count==0)
+            return -1;
+        int base = seq[head];
+        int d = s-base;
+        if (d<0)
+            return -1;
+        int lo = 0;
+        int hi = count-1;
+        while (lo<=hi) {
+            int mid = (lo+hi)>>>1;
+            int p = phys(mid);
+            int start = seq[p]-base;
+            if (d<start)
+                hi = mid-1;
+            else if (d>=start+len[p])
+                lo = mid+1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count==0;
+    }
+
+    // accessors for entry i, 0 being the oldest
+    int seq(int i) {
+        return seq[phys(i)];
+    }
+
+    int len(int i) {
+        return len[phys(i)];
+    }
+
+    int end(int i) {
+        int p = phys(i);
+        return seq[p]+len[p];
+    }
+
+    int flags(int i) {
+        return flags[phys(i)];
+    }
+
+    boolean sacked(int i) {
+        return (flags[phys(i)] & SACKED)!=0;
+    }
+
+    int sum(int i) {
+        return sum[phys(i)];
+    }
+
+    void setSum(int i, int dataSum) {
+        sum[phys(i)] = dataSum;
+    }
+
+
+    private int phys(int i) {
+        return (head+i) & (seq.length-1);
+    }
+
+    private void grow() {
+        int n = seq.length;
+        seq = unroll(seq, n);
+        len = unroll(len, n);
+        flags = unroll(flags, n);
+        sum = unroll(sum, n);
+        head = 0;
+    }
+
+    // a copy twice the size, with the entries moved to the front
+    private int[] unroll(int[] a, int n) {
+        int[] b = new int[2*n];
+        int first = n-head;
+        System.arraycopy(a, head, b, 0, first);
+        System.arraycopy(a, 0, b, first, head);
+        return b;
+    }
+}
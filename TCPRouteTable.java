@@ -0,0 +1,102 @@
+import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//---------------------------------------------------
+//
+// class TCPRouteTable
+//
+// which UDP endpoint carries the segments for a given remote TCP
+// endpoint, one table per TCPStack. every connection looks its route up once, when it is
+// opened, and keeps it, so connections to different peers never share
+// (or overwrite) a destination.
+//
+// a route is for one remote address and TCP port, or for every port
+// of an address (port 0). without one:
+//   an active open to host:port sends to UDP port <port> on host,
+//     the usual arrangement of one stack per host listening on the
+//     port its servers use
+//   a passive open answers on our own UDP port (the stack's) on the
+//     client's host, since both ends normally run on the same port
+//
+// routes for the stack TCPStart makes can be given at startup with
+//   -DROUTES=<host>[:<port>]=<udphost>:<udpport>,...
+// or added to any stack's table with add().
+//
+//---------------------------------------------------
+final class TCPRouteTable {
+
+    // our own UDP port, the fallback for passive opens
+    private final int defaultPort;
+
+    private final ConcurrentHashMap<InetSocketAddress, InetSocketAddress> routes =
+        new ConcurrentHashMap<InetSocketAddress, InetSocketAddress>();
+
+    TCPRouteTable(int defaultPort) {
+        this.defaultPort = defaultPort;
+    }
+
+
+    // routes segments for host:port (every port of host if port is 0)
+    // through the UDP endpoint to
+    void add(InetAddress host, int port, InetSocketAddress to) {
+        routes.put(new InetSocketAddress(host, port), to);
+    }
+
+    void remove(InetAddress host, int port) {
+        routes.remove(new InetSocketAddress(host, port));
+    }
+
+    // the UDP endpoint for a connection we open to host:port
+    InetSocketAddress active(InetAddress host, int port) {
+        return lookup(host, port, port);
+    }
+
+    // the UDP endpoint for a connection host:port opened to us
+    InetSocketAddress passive(InetAddress host, int port) {
+        return lookup(host, port, defaultPort);
+    }
+
+    private InetSocketAddress lookup(InetAddress host, int port, int fallback) {
+        InetSocketAddress to = routes.get(new InetSocketAddress(host, port));
+        if (to==null)
+            to = routes.get(new InetSocketAddress(host, 0));
+        if (to==null)
+            to = new InetSocketAddress(host, fallback);
+        return to;
+    }
+
+    // adds the routes in spec, as for -DROUTES. returns false if an
+    // entry could not be read, after adding the others.
+    boolean parse(String spec) {
+        boolean ok = true;
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            try {
+                String[] sides = entry.split("=");
+                InetSocketAddress from = endpoint(sides[0], 0);
+                InetSocketAddress to = endpoint(sides[1], -1);
+                add(from.getAddress(), from.getPort(), to);
+            }
+            catch (Exception e) {
+                System.err.println("bad route "+entry+": "+e);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    // host[:port], with port defaulting to dflt (-1: required)
+    private InetSocketAddress endpoint(String s, int dflt)
+        throws UnknownHostException {
+        int colon = s.lastIndexOf(':');
+        if (colon<0) {
+            if (dflt<0)
+                throw new IllegalArgumentException("no port in "+s);
+            return new InetSocketAddress(InetAddress.getByName(s), dflt);
+        }
+        return new InetSocketAddress(InetAddress.getByName(s.substring(0, colon)),
+                                     Integer.parseInt(s.substring(colon+1)));
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPSegmentPool
+//
+// buffers for whole segments, header and all, as they come off the
+// wire: one stack-wide pool, so that receiving allocates nothing once
+// it has warmed up. every buffer holds the largest datagram we accept,
+// the segment size plus MAX_HEADER_SIZE, and is a fixed slice of a
+// slab, a large array cut into SLAB_SEGMENTS of them; a Segment says
+// which slice. slabs are made as needed and never given back.
+//
+// take() hands a segment out and release() gives it back. a segment
+// has one holder and no reference count: the Demultiplexer holds it
+// while a packet is processed, and nothing keeps the bytes past that.
+// connections copy what they keep into their receive rings (in order
+// or not), and the retransmission queue keeps offsets into the send
+// ring, which it resends from.
+//
+// each thread keeps up to LOCAL_CACHE free segments of its own and
+// trades them with the shared free list half a cache at a time, so
+// taking and releasing on one thread (the Demultiplexer's) mostly does
+// not lock.
+//
+// with the stack's segmentDebug set (TCPStart: -DSEGMENTDEBUG=true)
+// every segment records
+// where it was taken, a release() of a free segment throws,
+// and leaks() reports segments held for longer than a given time.
+//
+// the stack's segment size must be set before the first take() (as
+// for the Demultiplexer, which is the first to take one).
+//
+//---------------------------------------------------
+final class TCPSegmentPool {
+
+    // segments per slab, and free segments a thread keeps to itself
+    static final int SLAB_SEGMENTS = 64;
+    static final int LOCAL_CACHE = 32;
+
+    // one segment's place in its slab
+    static final class Segment {
+        final byte[] array;
+        final int offset;
+        final int length;
+        private final TCPSegmentPool pool;
+        private final AtomicBoolean held = new AtomicBoolean();
+
+        // debug only: where and when it was taken, and whether leaks()
+        // has reported it
+        private Throwable takenAt;
+        private long takenTime;
+        private boolean reported;
+
+        private Segment(TCPSegmentPool pool, byte[] array, int offset, int length) {
+            this.pool = pool;
+            this.array = array;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        // gives the segment back
+        void release() {
+            if (held.compareAndSet(true, false))
+                pool.free(this);
+            else if (pool.stack.segmentDebug)
+                throw new IllegalStateException("segment released twice");
+        }
+    }
+
+    // the stack whose segment size and leak detection setting apply
+    private final TCPStack stack;
+
+    // bytes per segment, fixed when the first slab is made
+    private int length;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Segment> shared = new ArrayDeque<Segment>();
+    private final ArrayList<Segment> all = new ArrayList<Segment>();
+
+    private final ThreadLocal<ArrayDeque<Segment>> local =
+        ThreadLocal.withInitial(() -> new ArrayDeque<Segment>(2*LOCAL_CACHE));
+
+    // counters, for reporting: slabs made, segments handed out and
+    // given back
+    long slabs;
+    final AtomicInteger inUse = new AtomicInteger();
+
+
+    TCPSegmentPool(TCPStack stack) {
+        this.stack = stack;
+    }
+
+
+    // a segment for a whole datagram
+    Segment take() {
+        ArrayDeque<Segment> cache = local.get();
+        if (cache.isEmpty())
+            refill(cache);
+        Segment s = cache.pop();
+        s.held.set(true);
+        inUse.incrementAndGet();
+        if (stack.segmentDebug) {
+            s.takenAt = new Throwable("segment taken here");
+            s.takenTime = System.currentTimeMillis();
+            s.reported = false;
+        }
+        return s;
+    }
+
+    private void free(Segment s) {
+        inUse.decrementAndGet();
+        s.takenAt = null;
+        ArrayDeque<Segment> cache = local.get();
+        cache.push(s);
+        if (cache.size()>LOCAL_CACHE) {
+            lock.lock();
+            try {
+                for (int i=0; i<LOCAL_CACHE/2; i++)
+                    shared.push(cache.removeLast());
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // moves half a cache of free segments to cache, making a slab if
+    // the shared list has none
+    private void refill(ArrayDeque<Segment> cache) {
+        lock.lock();
+        try {
+            if (shared.isEmpty()) {
+                if (length==0)
+                    length = stack.mss+TCPPacket.MAX_HEADER_SIZE;
+                byte[] slab = new byte[SLAB_SEGMENTS*length];
+                for (int i=0; i<SLAB_SEGMENTS; i++) {
+                    Segment s = new Segment(this, slab, i*length, length);
+                    all.add(s);
+                    shared.push(s);
+                }
+                slabs++;
+            }
+            for (int i=0; i<LOCAL_CACHE/2 && !shared.isEmpty(); i++)
+                cache.push(shared.pop());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // debug: prints where each segment held longer than age milliseconds
+    // was taken, once per segment, and returns how many there are
+    int leaks(long age) {
+        if (!stack.segmentDebug)
+            return 0;
+        long now = System.currentTimeMillis();
+        int n = 0;
+        lock.lock();
+        try {
+            for (Segment s : all) {
+                Throwable at = s.takenAt;
+                if (s.held.get() && at!=null && now-s.takenTime>age) {
+                    n++;
+                    if (!s.reported) {
+                        s.reported = true;
+                        System.out.println("!!! segment held "+(now-s.takenTime)+
+                                           " ms");
+                        at.printStackTrace(System.out);
+                    }
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPServerChannel
+//
+// the listening side of TCPChannel. one connection at a time waits in
+// LISTEN on the port, just as with ServerSocket.accept(); accept()
+// hands it out as a TCPChannel once its handshake is done, and puts
+// the next one in LISTEN.
+//
+// in non-blocking mode accept() returns null if no connection has
+// arrived yet, and a TCPPoller reports OP_ACCEPT when one has.
+// accepted channels start out blocking, on the same stack.
+//
+//---------------------------------------------------
+class TCPServerChannel implements Channel, TCPPoller.Pollable {
+
+    private final TCPStack stack;
+    private final int port;
+
+    // the connection waiting in LISTEN (or in the handshake)
+    private StudentSocketImpl pending;
+
+    // guards the fields below; the flags are also read without it.
+    // not a monitor, since blocking calls are made with it held.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // held by accept(), across the wait for the handshake, so that two
+    // callers never take the same connection
+    private final ReentrantLock acceptLock = new ReentrantLock();
+
+    private volatile boolean blocking = true;
+    private volatile boolean open = true;
+    private TCPPoller poller;
+
+
+    private TCPServerChannel(TCPStack stack, int port) throws IOException {
+        this.stack = stack;
+        this.port = port;
+        stack.demux.registerServerPort(port, true);
+        pending = listen();
+    }
+
+    // a channel listening on port, on the stack TCPStart.start() made
+    public static TCPServerChannel open(int port) throws IOException {
+        return open(TCPStart.stack, port);
+    }
+
+    // a channel listening on port of the given stack
+    static TCPServerChannel open(TCPStack stack, int port) throws IOException {
+        return new TCPServerChannel(stack, port);
+    }
+
+
+    public TCPServerChannel configureBlocking(boolean block) {
+        blocking = block;
+        return this;
+    }
+
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    // returns the next connection, or null if there is none yet and the
+    // channel is non-blocking
+    public TCPChannel accept() throws IOException {
+        // one accept() at a time: the connection in LISTEN is the only
+        // one there is until it is replaced, after its handshake
+        if (blocking)
+            acceptLock.lock();
+        else if (!acceptLock.tryLock())
+            return null; // another accept() is taking it
+        try {
+            return acceptOne();
+        }
+        finally {
+            acceptLock.unlock();
+        }
+    }
+
+    // with acceptLock held
+    private TCPChannel acceptOne() throws IOException {
+        StudentSocketImpl arrived;
+        lock.lock();
+        try {
+            if (!open)
+                throw new ClosedChannelException();
+            arrived = pending;
+            if (!blocking && arrived.isPending())
+                return null;
+        }
+        finally {
+            lock.unlock();
+        }
+        long start = System.nanoTime();
+        try {
+            arrived.awaitEstablished();
+        }
+        catch (IOException e) {
+            // reset or timed out in the handshake: the next caller gets
+            // a new connection in LISTEN
+            relisten(arrived);
+            throw e;
+        }
+        stack.acceptWait.recordSince(start);
+        lock.lock();
+        try {
+            if (!open)
+                throw new ClosedChannelException();
+            pending = listen();
+        }
+        finally {
+            lock.unlock();
+        }
+        // it no longer speaks for this channel
+        arrived.setPoller(null, null);
+        return new TCPChannel(arrived);
+    }
+
+    private void relisten(StudentSocketImpl failed) throws IOException {
+        lock.lock();
+        try {
+            if (open && pending==failed)
+                pending = listen();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private StudentSocketImpl listen() throws IOException {
+        StudentSocketImpl impl = stack.newImpl();
+        impl.setPoller(poller, this);
+        impl.listenForConnection(port);
+        return impl;
+    }
+
+
+    // registers this channel with poller for TCPPoller.OP_ACCEPT
+    public void register(TCPPoller poller, int ops) throws IOException {
+        StudentSocketImpl impl;
+        lock.lock();
+        try {
+            if (!open)
+                throw new ClosedChannelException();
+            if (this.poller!=null && this.poller!=poller)
+                this.poller.cancel(this);
+            this.poller = poller;
+            impl = pending;
+        }
+        finally {
+            lock.unlock();
+        }
+        impl.setPoller(poller, this);
+        poller.register(this, ops);
+    }
+
+    public int readyOps() {
+        lock.lock();
+        try {
+            if (open && !pending.isPending())
+                return TCPPoller.OP_ACCEPT;
+            return 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // stops listening. a connection that already finished its handshake
+    // but was not accepted is closed.
+    public void close() throws IOException {
+        StudentSocketImpl impl;
+        TCPPoller p;
+        lock.lock();
+        try {
+            if (!open)
+                return;
+            open = false;
+            impl = pending;
+            p = poller;
+            poller = null;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (p!=null)
+            p.cancel(this);
+        stack.demux.unregisterServerPort(port);
+        impl.close();
+    }
+}
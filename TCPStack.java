@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.net.*;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+//---------------------------------------------------
+//
+// class TCPStack
+//
+// one complete instance of our TCP: the UDP port it receives on, its
+// Demultiplexer, TCPWrapper (rate limit, packet dropping, counters),
+// route table, Fast Open state, timer thread, segment size, buffer and
+// trace settings, the pool its connections take their buffers from,
+// the one received segments land in, and its latency histograms.
+// nothing in one stack is shared with another, so a program can run
+// several side by side, one per core or per tenant, each with its own
+// locks.
+//
+// TCPStart.start() makes one stack from the -D settings and installs
+// its factory for every Socket and ServerSocket. the JDK allows only
+// one such factory, so connections on any other stack are made from
+// the stack itself:
+//
+//   TCPStack s = new TCPStack(port);
+//   s.start();
+//   Socket c = s.socket();
+//   c.connect(new InetSocketAddress(host, port));
+//   ServerSocket l = s.serverSocket(port);
+//
+// or with s.openChannel(), s.openServerChannel(port), or a
+// TCPConnectionPool made for s.
+//
+// settings are changed before start(); the buffer sizes and Fast Open
+// apply to connections made after the change.
+//
+//---------------------------------------------------
+class TCPStack {
+
+    // default buffer sizes in bytes for new connections
+    static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+
+    // the port we receive on
+    final int udpPort;
+
+    final TCPWrapper wrapper;
+    final Demultiplexer demux;
+    final TCPRouteTable routes;
+    final TCPFastOpen fastOpen;
+    final TCPBufferPool buffers;
+    final TCPSegmentPool segments;
+    final TCPResources resources;
+    final StudentSocketImplFactory factory;
+
+    // the segment size (our MSS), in bytes of data. set with setMss()
+    // before start(), since the segment pool sizes its buffers from it.
+    volatile int mss = TCPPacket.MAX_PACKET_SIZE;
+
+    // whether every state transition ("!!!") and every packet sent and
+    // received (">>>" and "<<<") is printed. on by default; a program
+    // moving a lot of data turns them off, since the printing then
+    // costs more than the sending.
+    volatile boolean traceStates = true;
+    volatile boolean tracePackets = true;
+
+    // leak detection for received segments, see TCPSegmentPool
+    volatile boolean segmentDebug = false;
+
+    // per-connection buffer sizes, which also bound the advertised window
+    volatile int recvBufferSize = DEFAULT_BUFFER_SIZE;
+    volatile int sendBufferSize = DEFAULT_BUFFER_SIZE;
+
+    // whether send rings are allocated outside the Java heap, so that
+    // the gathering write hands the kernel their memory directly
+    volatile boolean directBuffers = false;
+
+    // for connections with SO_KEEPALIVE on: how long the peer may be
+    // silent before the first probe, the time between probes, and how
+    // many go unanswered before the connection is dropped (in
+    // milliseconds, the defaults of RFC 1122 and most kernels)
+    volatile long keepAliveIdle = 2 * 60 * 60 * 1000L;
+    volatile long keepAliveInterval = 75 * 1000L;
+    volatile int keepAliveProbes = 9;
+
+    // latency histograms, in microseconds: connect() from SYN to
+    // ESTABLISHED, time blocked in accept(), close() to CLOSED (TIME_WAIT
+    // included), sends held by the packet rate limit, and round trip
+    // times measured with timestamps. see latencies().
+    final TCPHistogram connectTime = new TCPHistogram("connect");
+    final TCPHistogram acceptWait = new TCPHistogram("accept_wait");
+    final TCPHistogram teardownTime = new TCPHistogram("teardown");
+    final TCPHistogram rateLimitStall = new TCPHistogram("rate_limit_stall");
+    final TCPHistogram rtt = new TCPHistogram("rtt");
+
+    // one timer thread serves every connection of the stack. it is made
+    // when the first connection needs it and stopped when the last one
+    // using it closes, so, as with a timer per connection, the program
+    // does not exit while a connection still has timers to run
+    // (TIME_WAIT).
+    private final ReentrantLock timerLock = new ReentrantLock();
+    private Timer timer;
+    private int timerUsers;
+
+    // runs TCPResources.check(), once startLeakCheck() is called
+    private Timer leakCheck;
+
+
+    TCPStack(int udpPort) {
+        this.udpPort = udpPort;
+        wrapper = new TCPWrapper(this);
+        routes = new TCPRouteTable(udpPort);
+        segments = new TCPSegmentPool(this);
+        demux = new Demultiplexer(this);
+        fastOpen = new TCPFastOpen();
+        buffers = new TCPBufferPool(this);
+        resources = new TCPResources(this);
+        factory = new StudentSocketImplFactory(this);
+    }
+
+    // starts receiving. the segment size (setMss()) must be set by
+    // then, since it sizes the receive buffers.
+    void start() {
+        demux.start();
+    }
+
+    // sets the segment size. it must leave room for the largest header
+    // in one UDP datagram.
+    void setMss(int size) {
+        if (size<1 || size>TCPPacket.MAX_UDP_PAYLOAD-TCPPacket.MAX_HEADER_SIZE) {
+            System.out.println("segment size must be between 1 and "+
+                               (TCPPacket.MAX_UDP_PAYLOAD-TCPPacket.MAX_HEADER_SIZE));
+            System.exit(1);
+        }
+        mss = size;
+    }
+
+
+    // a new, unconnected Socket on this stack
+    public Socket socket() throws SocketException {
+        return new StackSocket(newImpl());
+    }
+
+    // a ServerSocket on this stack listening on port
+    public ServerSocket serverSocket(int port) throws IOException {
+        StackServerSocket s = new StackServerSocket(this);
+        s.bind(new InetSocketAddress(port));
+        return s;
+    }
+
+    // a new, unconnected channel on this stack
+    public TCPChannel openChannel() {
+        return new TCPChannel(newImpl());
+    }
+
+    // a channel on this stack listening on port
+    public TCPServerChannel openServerChannel(int port) throws IOException {
+        return TCPServerChannel.open(this, port);
+    }
+
+    StudentSocketImpl newImpl() {
+        return (StudentSocketImpl) factory.createSocketImpl();
+    }
+
+
+    // records everything received and sent into c until stopCapture()
+    void startCapture(TCPCapture c) {
+        wrapper.capture = c;
+    }
+
+    // stops recording and closes the recording, if there is one
+    void stopCapture() throws IOException {
+        TCPCapture c = wrapper.capture;
+        wrapper.capture = null;
+        if (c!=null)
+            c.close();
+    }
+
+    // whether the timer thread is running, for TCPResources
+    boolean timerRunning() {
+        timerLock.lock();
+        try {
+            return timer!=null;
+        }
+        finally {
+            timerLock.unlock();
+        }
+    }
+
+    // runs the leak check (TCPResources.check()) every period
+    // milliseconds, on a daemon thread of its own, and prints the counts
+    // with it
+    void startLeakCheck(long period) {
+        timerLock.lock();
+        try {
+            if (leakCheck!=null)
+                return;
+            leakCheck = new Timer("TCP leak check "+udpPort, true);
+        }
+        finally {
+            timerLock.unlock();
+        }
+        leakCheck.schedule(new TimerTask() {
+                public void run() {
+                    resources.check();
+                    System.out.println("!!! resources "+resources.report());
+                }
+            }, period, period);
+    }
+
+    // the timer for a connection's tasks. every call is matched by one
+    // to releaseTimer().
+    Timer acquireTimer() {
+        timerLock.lock();
+        try {
+            if (timer==null)
+                timer = new Timer("TCP timers "+udpPort, false);
+            timerUsers++;
+            return timer;
+        }
+        finally {
+            timerLock.unlock();
+        }
+    }
+
+    // gives up a connection's use of the timer, stopping its thread if
+    // no other connection uses it
+    void releaseTimer() {
+        timerLock.lock();
+        try {
+            if (--timerUsers==0) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+        finally {
+            timerLock.unlock();
+        }
+    }
+
+    // every latency histogram, one JSON object per line. with reset set
+    // the counts start over, so that each call covers the time since
+    // the one before.
+    public String latencies(boolean reset) {
+        TCPHistogram[] all = { connectTime, acceptWait, teardownTime,
+                               rateLimitStall, rtt };
+        StringBuilder b = new StringBuilder();
+        for (TCPHistogram h : all)
+            b.append(reset ? h.interval() : h.snapshot()).append('\n');
+        return b.toString();
+    }
+
+    public String toString() {
+        return "TCPStack[udp "+udpPort+"]";
+    }
+
+
+    // Socket's constructor for a given impl is protected
+    static class StackSocket extends Socket {
+        StackSocket(SocketImpl impl) throws SocketException {
+            super(impl);
+        }
+    }
+
+    // ServerSocket.accept() would take the impl for the accepted
+    // connection from the installed factory, so it is made here, on the
+    // listening socket's stack
+    static class StackServerSocket extends ServerSocket {
+        private final TCPStack stack;
+
+        StackServerSocket(TCPStack stack) {
+            super(stack.newImpl());
+            this.stack = stack;
+        }
+
+        public Socket accept() throws IOException {
+            if (isClosed())
+                throw new SocketException("Socket is closed");
+            if (!isBound())
+                throw new SocketException("Socket is not bound yet");
+            Socket s = new StackSocket(stack.newImpl());
+            implAccept(s);
+            return s;
+        }
+    }
+}
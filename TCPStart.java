@@ -1,4 +1,6 @@
+import java.io.*;
 import java.net.*;
+import java.lang.reflect.Method;
 
 
 //---------------------------------------------------
@@ -12,6 +14,10 @@ import java.net.*;
 // code that runs on TOP of this whole implementation will
 // be put in this file, as separate threads.
 //
+// start() makes the program's default TCPStack from the resources
+// below and installs it for every Socket and ServerSocket. more stacks
+// can be made with new TCPStack(port).
+//
 // to start our implementation of TCP, type
 //   java TCPStart <UDP port #>
 //
@@ -21,6 +27,34 @@ class TCPStart {
     
   public final static String PORTRESOURCE = "UDPPORT";
   public final static String LOSSRATERESOURCE = "LOSSRATE";
+  public final static String PACKETRATERESOURCE = "PACKETRATE";
+  public final static String RCVBUFRESOURCE = "RCVBUF";
+  public final static String SNDBUFRESOURCE = "SNDBUF";
+  public final static String MSSRESOURCE = "MSS";
+  public final static String CHECKSUMRESOURCE = "CHECKSUM";
+  public final static String DIRECTBUFRESOURCE = "DIRECTBUF";
+  public final static String TRACESTATESRESOURCE = "TRACESTATES";
+  public final static String TRACEPACKETSRESOURCE = "TRACEPACKETS";
+  public final static String SEGMENTDEBUGRESOURCE = "SEGMENTDEBUG";
+  public final static String LEAKCHECKRESOURCE = "LEAKCHECK";
+  public final static String CAPTURERESOURCE = "CAPTURE";
+  public final static String VIRTUALTHREADSRESOURCE = "VIRTUALTHREADS";
+  public final static String FASTOPENRESOURCE = "FASTOPEN";
+  public final static String ROUTESRESOURCE = "ROUTES";
+
+  // the default stack, which plain Sockets and ServerSockets use, as
+  // do TCPChannel.open(), TCPServerChannel.open(port) and pools made
+  // without a stack
+  static TCPStack stack;
+
+  // whether newConnectionThread() makes virtual threads
+  static boolean virtualThreads = false;
+
+  // Thread.ofVirtual() and Thread.Builder's name() and unstarted(), or
+  // null where the JDK has no virtual threads
+  private static Object virtualBuilder;
+  private static Method builderName;
+  private static Method builderUnstarted;
 
   static public void start() {
 
@@ -37,19 +71,81 @@ class TCPStart {
     int portForUDP = Integer.parseInt(System.getProperty(PORTRESOURCE));
 
         
-    // initialize TCPWrapper's port number for UDP wrapping
-    TCPWrapper.setUDPPortNumber( portForUDP );
+    // create the stack, with its Demultiplexer and TCPWrapper on that
+    // port
+    TCPStack S = new TCPStack( portForUDP );
+
+    // UDP endpoints for peers that do not follow the one-port
+    // convention: -DROUTES=<host>[:<port>]=<udphost>:<udpport>,...
+    if (System.getProperty(ROUTESRESOURCE)!=null &&
+        !S.routes.parse(System.getProperty(ROUTESRESOURCE)))
+      System.exit(1);
 
         
     // initialize more TCPWrapper stuff here, if you want to test packet
     // dropping, or if you want to change the sending-rate limit
+    if (System.getProperty(PACKETRATERESOURCE)!=null) {
+      S.wrapper.setPacketRate
+	(Integer.parseInt(System.getProperty(PACKETRATERESOURCE)));
+    }
+
+    // checksum verification of received packets: verify (default),
+    // trustloopback or off
+    String checksum = System.getProperty(CHECKSUMRESOURCE, "verify");
+    if (checksum.equals("trustloopback"))
+      S.wrapper.setChecksumVerification(true, true);
+    else if (checksum.equals("off"))
+      S.wrapper.setChecksumVerification(false, false);
+
+    // per-connection buffer sizes, which also bound the advertised window
+    if (System.getProperty(RCVBUFRESOURCE)!=null)
+      S.recvBufferSize =
+	Integer.parseInt(System.getProperty(RCVBUFRESOURCE));
+    if (System.getProperty(SNDBUFRESOURCE)!=null)
+      S.sendBufferSize =
+	Integer.parseInt(System.getProperty(SNDBUFRESOURCE));
+
+    // state transition trace, on unless -DTRACESTATES=false
+    if (System.getProperty(TRACESTATESRESOURCE)!=null)
+      S.traceStates =
+	Boolean.parseBoolean(System.getProperty(TRACESTATESRESOURCE));
+
+    // packet trace, on unless -DTRACEPACKETS=false
+    if (System.getProperty(TRACEPACKETSRESOURCE)!=null)
+      S.tracePackets =
+	Boolean.parseBoolean(System.getProperty(TRACEPACKETSRESOURCE));
+
+    // received segment leak detection: -DSEGMENTDEBUG=true
+    if (System.getProperty(SEGMENTDEBUGRESOURCE)!=null)
+      S.segmentDebug =
+	Boolean.parseBoolean(System.getProperty(SEGMENTDEBUGRESOURCE));
+
+    // one virtual thread per connection: -DVIRTUALTHREADS=true. every
+    // place a connection blocks waits on a java.util.concurrent lock,
+    // so a blocked virtual thread gives its carrier thread back.
+    if (System.getProperty(VIRTUALTHREADSRESOURCE)!=null)
+      virtualThreads = lookupVirtualThreads
+	(Boolean.parseBoolean(System.getProperty(VIRTUALTHREADSRESOURCE)));
 
+    // TCP Fast Open, client and server side: -DFASTOPEN=true
+    if (System.getProperty(FASTOPENRESOURCE)!=null)
+      S.fastOpen.enabled =
+	Boolean.parseBoolean(System.getProperty(FASTOPENRESOURCE));
+
+    // send rings in direct memory: -DDIRECTBUF=true
+    if (System.getProperty(DIRECTBUFRESOURCE)!=null)
+      S.directBuffers =
+	Boolean.parseBoolean(System.getProperty(DIRECTBUFRESOURCE));
         
-    // create an instance of the Demultiplexer
-    Demultiplexer D = new Demultiplexer( portForUDP );
+    // segment size must be known before the Demultiplexer sizes its
+    // receive buffer. bigger segments mean more bytes per rate-limited
+    // packet.
+    if (System.getProperty(MSSRESOURCE)!=null)
+      S.setMss(Integer.parseInt(System.getProperty(MSSRESOURCE)));
 
-    // create an instance of OUR SocketImplFactory
-    StudentSocketImplFactory myFactory = new StudentSocketImplFactory(D);
+    // OUR SocketImplFactory, which makes connections on the stack
+    StudentSocketImplFactory myFactory = S.factory;
+    stack = S;
         
 
     // tell all Socket objects of this program to use OUR
@@ -63,16 +159,79 @@ class TCPStart {
     }
 
 
+    // record every datagram for tcpreplay: -DCAPTURE=<file>, written
+    // out when the program exits
+    if (System.getProperty(CAPTURERESOURCE)!=null) {
+      try {
+	S.startCapture(new TCPCapture
+		       (new FileOutputStream(System.getProperty(CAPTURERESOURCE))));
+      } catch (IOException e) {
+	System.out.println("cannot capture: "+e);
+	System.exit(1);
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    try {
+	      S.stopCapture();
+	    } catch (IOException e) {
+	      System.out.println("capture: "+e);
+	    }
+	  }));
+    }
+
     // start the demultiplexer
-    D.start();
+    S.start();
 
     if (System.getProperty(LOSSRATERESOURCE)!=null) {
-      TCPWrapper.dropRandomPackets
+      S.wrapper.dropRandomPackets
 	(System.currentTimeMillis(),
 	 Double.parseDouble(System.getProperty(LOSSRATERESOURCE)));
     }        
 
+    // resource counts and leak check every so many seconds:
+    // -DLEAKCHECK=<seconds>
+    if (System.getProperty(LEAKCHECKRESOURCE)!=null)
+      S.startLeakCheck
+	(1000L*Integer.parseInt(System.getProperty(LEAKCHECKRESOURCE)));
+
         
   }
-}
 
+  /**
+   * Returns an unstarted daemon thread to serve one connection: a
+   * virtual thread with -DVIRTUALTHREADS=true, so that many mostly idle
+   * connections do not need as many platform threads, or a platform
+   * thread otherwise.
+   */
+  static Thread newConnectionThread(String name, Runnable r) {
+    if (virtualThreads) {
+      try {
+        return (Thread) builderUnstarted.invoke
+          (builderName.invoke(virtualBuilder, name), r);
+      } catch (Exception e) {
+        System.out.println("virtual thread failed, using a platform thread: "+e);
+      }
+    }
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  // looks up the virtual thread builder by reflection, so this still
+  // compiles and runs on a JDK without one. returns whether it is there.
+  private static boolean lookupVirtualThreads(boolean wanted) {
+    if (!wanted)
+      return false;
+    try {
+      virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      builderName = builder.getMethod("name", String.class);
+      builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+      return true;
+    } catch (Exception e) {
+      System.out.println("no virtual threads in this JDK ("+
+                         System.getProperty("java.version")+
+                         "), using platform threads");
+      return false;
+    }
+  }
+}
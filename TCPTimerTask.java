@@ -1,12 +1,16 @@
 
 import java.util.TimerTask;
 import java.util.Timer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TCPTimerTask extends TimerTask {
 
   private BaseSocketImpl sock;
   private Object ref;
 
+  // tasks scheduled and not yet run or cancelled, or null
+  private AtomicInteger scheduled;
+
   /**
    * register timer event for TCP statck
    * @param tcpTtimer TImer object to use
@@ -20,8 +24,36 @@ public class TCPTimerTask extends TimerTask {
     tcpTimer.schedule(this, delay);
   }
 
+  /**
+   * same, counting the task in scheduled until it runs or is cancelled
+   */
+  public TCPTimerTask(Timer tcpTimer, long delay, BaseSocketImpl sock, Object ref,
+                      AtomicInteger scheduled){
+    this.sock = sock;
+    this.ref = ref;
+    this.scheduled = scheduled;
+    scheduled.incrementAndGet();
+    try {
+      tcpTimer.schedule(this, delay);
+    }
+    catch (IllegalStateException e) {
+      scheduled.decrementAndGet();
+      throw e;
+    }
+  }
+
   public void run(){
+    if (scheduled != null)
+      scheduled.decrementAndGet();
     sock.handleTimer(ref);
   }
+
+  public boolean cancel(){
+    // true only if it was still to run, so it is uncounted once
+    boolean wasScheduled = super.cancel();
+    if (wasScheduled && scheduled != null)
+      scheduled.decrementAndGet();
+    return wasScheduled;
+  }
 }
 
@@ -1,6 +1,9 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 //---------------------------------------------------
@@ -13,13 +16,19 @@ import java.util.*;
 // and there is a choice of random or selective packet
 // dropping.
 //
-// everything here is static.
+// there is one of these per TCPStack, with its own rate limit, drop
+// settings and counters, so stacks in one program do not share them.
 //
-// the port number MUST be initialized.
-//   use setUDPPortNumber(int port);
-//   (done by TCPStart)
+// datagrams go out through one connected DatagramChannel per
+// destination. a packet whose data is a view of a send ring is sent as
+// a gathering write of its header and the ring slices, so the data is
+// never copied on its way out.
 //
-//everything else has
+// every packet is sent to the UDP endpoint its connection was routed
+// to when it opened (see TCPRouteTable), so connections to different
+// peers can be open at once.
+//
+// everything has
 // default values:
 //   (1) sending rate defaults to 10 packets per second
 //   (2) random packet dropping is disabled
@@ -29,44 +38,94 @@ import java.util.*;
 class TCPWrapper {
 
     // the max number of packets allowed to be sent per second
-    static private int packetsPerSecond = 10;
+    private int packetsPerSecond = 10;
 
-    // the Date() object for rate limiting the packets.
-    static long time = (new Date()).getTime();
-    static long temptime;
+    // when the current burst of packets started, for rate limiting
+    long time = System.currentTimeMillis();
+    long temptime;
     
     // counter of how many packets have been sent this second, so far.
-    static int packetBurst = 0;
+    int packetBurst = 0;
     
     // flag if we are to drop random packets (i.e. send() will not send
     // the packet - to simulate packet loss!)
-    static boolean randomPacketsDropped = false;
+    boolean randomPacketsDropped = false;
 
     // flag if we are to drop specific packets
-    static boolean selectedPacketsDropped = false;
+    boolean selectedPacketsDropped = false;
 
     // the number generator for psuedorandom numbers.
-    static Random numberGenerator=null;
+    Random numberGenerator=null;
 
     // the rate of random packets to be dropped
-    static double rateToDrop=0.0;
+    double rateToDrop=0.0;
     
     // the set of selected packets to be dropped
-    static Hashtable dropSet=null;
+    Hashtable dropSet=null;
     
     // counter for how many packets sent OR dropped (total of both).
     // so, counter will = 1 for the first packet sent.
-    static long packetCounter = 0;
+    long packetCounter = 0;
 
     // counter for how many packets have been dropped.
-    static long droppedCounter = 0;
+    long droppedCounter = 0;
+
+    // counter for how many of the packets sent were retransmissions
+    // (also counted in packetCounter).
+    long retransmittedCounter = 0;
     
-    // for UDP sending
-    static int portForUDP = -1;
+    // every datagram (or, for a ring view, its header) is written here
+    // before it is sent, so sending does not allocate a new array per
+    // packet. only used inside send(), with sendLock held.
+    byte[] wireBuf = new byte[TCPPacket.MAX_UDP_PAYLOAD];
+    ByteBuffer wireView = ByteBuffer.wrap(wireBuf);
+
+    // header plus up to two ring slices for a gathering write
+    ByteBuffer[] gather = new ByteBuffer[3];
+
+    // serializes send() and resend(). a java.util.concurrent lock, not a
+    // monitor, so a virtual thread waiting on it or sleeping out the
+    // rate limit inside it does not hold on to its carrier thread.
+    final ReentrantLock sendLock = new ReentrantLock();
+
+    // connected channels we send from, by destination, and the
+    // destinations sent to since the last closeIdleChannels()
+    HashMap<InetSocketAddress, DatagramChannel> channels =
+        new HashMap<InetSocketAddress, DatagramChannel>();
+    HashSet<InetSocketAddress> channelsUsed = new HashSet<InetSocketAddress>();
+
+    // the stack this wrapper sends for, whose packet trace setting it
+    // follows, and its histogram of how long sends were held by the
+    // rate limit
+    private final TCPStack stack;
+    private final TCPHistogram stalls;
+
+    TCPWrapper(TCPStack stack) {
+        this.stack = stack;
+        this.stalls = stack.rateLimitStall;
+    }
+
+    // records every datagram sent, and the Demultiplexer every one
+    // received, while set. see TCPCapture.
+    volatile TCPCapture capture;
+
+    // false while a recording is replayed into the stack (see
+    // tcpreplay): packets are then recorded and counted, but neither
+    // rate limited nor sent.
+    volatile boolean transmit = true;
+
+    // checksum verification on receive. with trustLoopback set, packets
+    // from a loopback address are taken as intact without summing them.
+    boolean verifyChecksums = true;
+    boolean trustLoopback = false;
+
+    // counter for how many received packets failed the checksum, or
+    // were too short to hold a TCP header
+    long badChecksumCounter = 0;
 
     
     // sets the packet rate, of course
-    static public void setPacketRate( int pps ) {
+    public void setPacketRate( int pps ) {
         if (pps > 50) {
             System.out.println("packet rate should not be set higher "+
                                "than 50 packets per second.");
@@ -75,9 +134,13 @@ class TCPWrapper {
         packetsPerSecond = pps;
     }
 
+    public int getPacketRate() {
+        return packetsPerSecond;
+    }
+
 
     // seeds and enables the random packet dropping
-    static public void dropRandomPackets( long seed, double rate ) {
+    public void dropRandomPackets( long seed, double rate ) {
         // do random packet stuff here...
         if (rate>1.0) {
             System.out.println("for dropping random packets," +
@@ -95,7 +158,7 @@ class TCPWrapper {
     
     // adds a specific "Nth" packet to the list of packets that will be
     // dropped.  call this function for EACH packet you want to drop
-    static public void dropSelectedPacket( int nthPacket ) {
+    public void dropSelectedPacket( int nthPacket ) {
         // set up a static array or something that will drop the nth
         // packet - including ACKS and ANYTHING sent through
         // TCPWrapper.send(...)
@@ -107,12 +170,15 @@ class TCPWrapper {
 
 
 
-    // MUST be called before sending packets
-    // or else you'll just crash =)
-    static public void setUDPPortNumber( int port ) {
-        portForUDP = port;
+    // turns checksum verification of received packets on or off, and
+    // whether loopback traffic is trusted without it. checksums are
+    // always computed on send.
+    public void setChecksumVerification( boolean verify,
+                                                boolean trustLoopback ) {
+        verifyChecksums = verify;
+        this.trustLoopback = trustLoopback;
     }
-    
+
 
 
     // sends a packet over the network, wrapped in a UDP datagram:
@@ -120,7 +186,20 @@ class TCPWrapper {
     //   if we try to send a packet faster than the rate limit, this
     //   function will BLOCK (i.e. sit and wait) until it can send the
     //   packet.
-    static synchronized public void send(TCPPacket packet, InetAddress remoteHost) {
+    //
+    //   to is the UDP endpoint of the connection's route.
+    public void send(TCPPacket packet, InetSocketAddress to) {
+        sendLock.lock();
+        try {
+            sendLocked(packet, to);
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void sendLocked(TCPPacket packet, InetSocketAddress to) {
+        InetAddress remoteHost = to.getAddress();
 
         // the first time this happens, it increments from 0 to 1
         // which is the desired condition.
@@ -147,13 +226,41 @@ class TCPWrapper {
                 
 
         // CHECK RATE LIMIT
-        if (packetBurst>=packetsPerSecond) {
-            temptime = (new Date()).getTime();
+        if (transmit && packetBurst>=packetsPerSecond) {
+            temptime = System.currentTimeMillis();
 
             // prevents us from proceeding till at least a second has
-            // passed since our last burst of packets.
-            while( temptime< time+1000)
-	      temptime = (new Date()).getTime();
+            // passed since our last burst of packets. sleeping rather
+            // than spinning leaves the CPU to other connections.
+            long stalled = System.nanoTime();
+            TCPEvents.RateLimitStall stall = null;
+            if (TCPEvents.rateLimitStallEnabled) {
+                stall = new TCPEvents.RateLimitStall();
+                stall.begin();
+            }
+            boolean interrupted = false;
+            while( temptime< time+1000) {
+                try {
+                    Thread.sleep(time+1000-temptime);
+                }
+                catch(InterruptedException e) {
+                    // the limit still holds; the caller sees the
+                    // interrupt once the packet is out
+                    interrupted = true;
+                }
+                temptime = System.currentTimeMillis();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            stalls.recordSince(stalled);
+            if (stall!=null) {
+                stall.end();
+                if (stall.shouldCommit()) {
+                    stall.destination = to.toString();
+                    stall.packet = packetCounter;
+                    stall.commit();
+                }
+            }
             time = temptime;
             packetBurst=0;
         }
@@ -161,11 +268,32 @@ class TCPWrapper {
 
         
         try {
-            byte toSend[] = packet.getBufferPacket();
-            DatagramPacket p = new DatagramPacket(toSend,toSend.length,
-                                                  remoteHost,portForUDP);
-            DatagramSocket sock = new DatagramSocket();
-            sock.send(p);
+            TCPCapture c = capture;
+            if (packet.isView()) {
+                int length = packet.writeHeader(wireBuf);
+                packet.setChecksum(wireBuf, remoteHost);
+                gather[0] = wireView.clear().limit(length);
+                int n = packet.slices(gather, 1);
+                if (c!=null)
+                    c.outbound(wireBuf, length, gather, 1, n, to);
+                if (transmit)
+                    channelTo(to).write(gather, 0, 1+n);
+            }
+            else {
+                int length = packet.writeTo(wireBuf);
+                packet.setChecksum(wireBuf, remoteHost);
+                if (c!=null)
+                    c.outbound(wireBuf, 0, length, to);
+                if (transmit)
+                    channelTo(to).write(wireView.clear().limit(length));
+            }
+        }
+        catch(PortUnreachableException e) {
+            // an earlier datagram found nothing listening on the other
+            // end. this one is lost like any dropped packet.
+            System.out.println("packet # "+packetCounter+" to "+to+
+                               " lost, port unreachable.");
+            return;
         }
         catch(Exception e) {
             System.out.println(e);
@@ -174,18 +302,117 @@ class TCPWrapper {
 
 
         // want this debug line?
-        System.out.println("\n<<< packet # "+packetCounter+" to "+remoteHost+"...");
-        System.out.println("<<< "+packet+"\n");
+        if (stack.tracePackets) {
+            System.out.println("\n<<< packet # "+packetCounter+" to "+to+"...");
+            System.out.println("<<< "+packet+"\n");
+        }
+    }
+
+    
+    // returns the channel connected to the given destination, opening
+    // it the first time. connecting only fixes the peer, nothing is
+    // sent.
+    private DatagramChannel channelTo(InetSocketAddress to)
+        throws IOException {
+        DatagramChannel channel = channels.get(to);
+        if (channel==null) {
+            channel = DatagramChannel.open();
+            channel.connect(to);
+            channels.put(to, channel);
+        }
+        channelsUsed.add(to);
+        return channel;
+    }
+
+    // the number of channels open for sending
+    int channelCount() {
+        sendLock.lock();
+        try {
+            return channels.size();
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    // closes the channels nothing was sent from since the last call,
+    // and returns how many. a destination sent to again gets a new one.
+    int closeIdleChannels() {
+        sendLock.lock();
+        try {
+            int closed = 0;
+            Iterator<Map.Entry<InetSocketAddress, DatagramChannel>> i =
+                channels.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<InetSocketAddress, DatagramChannel> e = i.next();
+                if (channelsUsed.contains(e.getKey()))
+                    continue;
+                try {
+                    e.getValue().close();
+                }
+                catch (IOException x) {
+                    // gone either way
+                }
+                i.remove();
+                closed++;
+            }
+            channelsUsed.clear();
+            return closed;
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    
+    // sends a packet that has been sent before (i.e. on a retransmission
+    // timeout). same as send(), but counted separately so that the
+    // retransmit ratio can be reported.
+    public void resend(TCPPacket packet, InetSocketAddress to) {
+        sendLock.lock();
+        try {
+            retransmittedCounter++;
+            sendLocked(packet, to);
+        }
+        finally {
+            sendLock.unlock();
+        }
     }
 
     
     // unwraps the TCP packet from the UDP wrapper. this function does
     // NOT receive UDP packets from the network. it is invoked AFTER
     // receiving the datagram.
-    static public TCPPacket unwrap(DatagramPacket d) {
-        byte b[] = new byte[d.getLength()];
-	System.arraycopy(d.getData(),0,b,0,d.getLength());
-        return( new TCPPacket(b, d.getAddress()) );
+    //
+    // returns null if the packet fails the checksum.
+    public TCPPacket unwrap(DatagramPacket d) {
+        TCPPacket packet = new TCPPacket();
+        return( unwrap(d, packet) ? packet : null );
+    }
+
+    // same, into a packet the caller reuses for every datagram. the
+    // packet's data stays in d's buffer. returns false if the packet
+    // fails the checksum.
+    boolean unwrap(DatagramPacket d, TCPPacket into) {
+        // too short for a TCP header, or with a header length that does
+        // not fit the datagram: parsing would read past it
+        if (!TCPPacket.fits(d.getData(), d.getOffset(), d.getLength())) {
+            badChecksumCounter++;
+            System.out.println("packet from "+d.getAddress()+
+                               " dropped, "+d.getLength()+" bytes is no TCP header.");
+            return false;
+        }
+        if (verifyChecksums &&
+            !(trustLoopback && d.getAddress().isLoopbackAddress()) &&
+            !TCPChecksum.verify(d.getData(), d.getOffset(), d.getLength(),
+                                d.getAddress())) {
+            badChecksumCounter++;
+            System.out.println("packet from "+d.getAddress()+
+                               " dropped, bad checksum.");
+            return false;
+        }
+        into.parse(d.getData(), d.getOffset(), d.getLength(), d.getAddress());
+        return true;
     }
     
 
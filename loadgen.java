@@ -0,0 +1,411 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+//---------------------------------------------------
+//
+// class loadgen
+//
+// load generator for the TCP implementation, in the spirit of iperf.
+// all sockets are created through StudentSocketImplFactory (via
+// TCPStart.start()), so this measures our stack and not the JDK's.
+//
+// modes:
+//   rate  - <concurrency> clients loop connect()/close() for
+//           <seconds>, reporting handshakes/sec and connect latency
+//           percentiles.
+//   bulk  - <concurrency> clients stream bytes for <seconds>,
+//           reporting goodput and the retransmit ratio.
+//   sink  - accepts connections on <hostport> and reads until EOF,
+//           so a rate or bulk run on another host has a peer.
+//   idle  - opens <concurrency> connections and leaves them idle,
+//           reporting the heap each one costs, for comparison with
+//           IDLE_TARGET_BYTES. <seconds> is ignored. with "loopback"
+//           both ends are in this JVM and the figure is per end.
+//
+// if <hostname> is "loopback", a sink is started in this JVM on
+// <hostport> (which must then be the UDPPORT) and the clients connect
+// to it over the local UDP port.
+//
+// loss and sending rate are set with the usual properties:
+//   -DLOSSRATE=<0.0..1.0> -DPACKETRATE=<pps>
+// with -DVIRTUALTHREADS=true every client and sink connection runs on
+// its own virtual thread (where the JDK has them).
+//
+// the result is ONE line of JSON on stdout (or appended to the file
+// named by -DLOADGEN_OUT=<file>) so runs can be tracked across
+// versions. the stack's packet-by-packet debug output is suppressed
+// unless -DLOADGEN_VERBOSE is set.
+//
+//---------------------------------------------------
+public class loadgen {
+
+  public final static String OUTRESOURCE = "LOADGEN_OUT";
+  public final static String VERBOSERESOURCE = "LOADGEN_VERBOSE";
+
+  // size of each write() in bulk mode
+  private final static int BULK_CHUNK = 4096;
+
+  // how long to wait for clients stuck in the stack after the run ends
+  private final static long GRACE_MS = 5000;
+
+  // heap an idle, established connection may cost, Socket and impl
+  // included, which idle mode checks
+  final static long IDLE_TARGET_BYTES = 4096;
+
+  private static PrintStream results = System.out;
+
+  // counters shared by all client threads
+  private static final AtomicLong handshakes = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+  private static final AtomicLong bytesWritten = new AtomicLong();
+  private static final AtomicLong bytesReceived = new AtomicLong();
+  private static final AtomicLong accepted = new AtomicLong();
+
+  public static void main(String[] argv) {
+    if (argv.length < 2 ||
+        (!argv[0].equals("sink") && argv.length < 3)) {
+      System.err.println("usage: loadgen rate|bulk|idle <hostname> <hostport> "+
+                         "[concurrency] [seconds]");
+      System.err.println("       loadgen sink <hostport>");
+      System.exit(1);
+    }
+
+    boolean verbose = System.getProperty(VERBOSERESOURCE)!=null;
+    if (!verbose)
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+    try {
+      TCPStart.start();
+      // without the trace, the packets are not even formatted
+      if (!verbose)
+        TCPStart.stack.tracePackets = false;
+
+      String mode = argv[0];
+      if (mode.equals("sink")) {
+        runSink(new ServerSocket(Integer.parseInt(argv[1])));
+        return;
+      }
+
+      String host = argv[1];
+      int port = Integer.parseInt(argv[2]);
+      int concurrency = argv.length > 3 ? Integer.parseInt(argv[3]) : 1;
+      int seconds = argv.length > 4 ? Integer.parseInt(argv[4]) : 10;
+
+      boolean loopback = host.equals("loopback");
+      if (mode.equals("idle")) {
+        reportIdle(concurrency, loopback, idle(host, port, concurrency, loopback));
+        System.exit(0);
+      }
+      if (loopback) {
+        final ServerSocket ss = new ServerSocket(port);
+        Thread sink = TCPStart.newConnectionThread("loadgen-sink",
+                                                   () -> runSink(ss));
+        sink.start();
+        host = "localhost";
+      }
+
+      if (!mode.equals("rate") && !mode.equals("bulk")) {
+        System.err.println("unknown mode "+mode);
+        System.exit(1);
+      }
+      report(mode, concurrency, seconds, loopback,
+             run(mode, host, port, concurrency, seconds));
+    }
+    catch(Exception e){
+      System.err.println("Caught exception:");
+      e.printStackTrace();
+      System.exit(1);
+    }
+    // TIME_WAIT timers keep non-daemon threads alive
+    System.exit(0);
+  }
+
+
+  // starts the client threads, waits for the run to finish and returns
+  // the connect() latencies (in nanoseconds) of all of them.
+  private static long[] run(final String mode, final String host,
+                            final int port, int concurrency, int seconds)
+    throws InterruptedException {
+
+    final long deadline = System.nanoTime() + seconds*1000000000L;
+    final long[][] latencies = new long[concurrency][];
+    Thread[] clients = new Thread[concurrency];
+
+    for (int i=0; i<concurrency; i++) {
+      final int id = i;
+      clients[i] = TCPStart.newConnectionThread("loadgen-client-"+i, () -> {
+          latencies[id] = mode.equals("rate")
+            ? rateClient(host, port, deadline)
+            : bulkClient(host, port, deadline);
+        });
+      clients[i].start();
+    }
+    for (int i=0; i<concurrency; i++)
+      clients[i].join(seconds*1000L + GRACE_MS);
+
+    int total = 0;
+    for (int i=0; i<concurrency; i++)
+      if (latencies[i]!=null)
+        total += latencies[i].length;
+    long[] all = new long[total];
+    int n = 0;
+    for (int i=0; i<concurrency; i++)
+      if (latencies[i]!=null) {
+        System.arraycopy(latencies[i], 0, all, n, latencies[i].length);
+        n += latencies[i].length;
+      }
+    return all;
+  }
+
+
+  // one connection-rate client: connect, close, repeat until deadline.
+  private static long[] rateClient(String host, int port, long deadline) {
+    long[] lat = new long[64];
+    int n = 0;
+    while (System.nanoTime() < deadline) {
+      long start = System.nanoTime();
+      try {
+        Socket sock = new Socket(host, port);
+        long end = System.nanoTime();
+        handshakes.incrementAndGet();
+        if (n==lat.length)
+          lat = Arrays.copyOf(lat, n*2);
+        lat[n++] = end-start;
+        sock.close();
+      }
+      catch (Exception e) {
+        failures.incrementAndGet();
+      }
+    }
+    return Arrays.copyOf(lat, n);
+  }
+
+
+  // one bulk client: connect once, write until deadline, close.
+  private static long[] bulkClient(String host, int port, long deadline) {
+    byte[] chunk = new byte[BULK_CHUNK];
+    for (int i=0; i<chunk.length; i++)
+      chunk[i] = (byte) i;
+    long start = System.nanoTime();
+    try {
+      Socket sock = new Socket(host, port);
+      long connected = System.nanoTime();
+      handshakes.incrementAndGet();
+      OutputStream out = sock.getOutputStream();
+      while (System.nanoTime() < deadline) {
+        out.write(chunk);
+        bytesWritten.addAndGet(chunk.length);
+      }
+      out.flush();
+      sock.close();
+      return new long[] { connected-start };
+    }
+    catch (Exception e) {
+      System.err.println("loadgen: bulk client failed: "+e);
+      failures.incrementAndGet();
+      return new long[0];
+    }
+  }
+
+
+  // opens n connections one after the other, and with a loopback sink
+  // accepts them, without reading or writing. returns the growth of
+  // the heap in bytes once all of them are established.
+  private static long idle(String host, int port, int n, boolean loopback)
+    throws Exception {
+    final List<Socket> held = Collections.synchronizedList(new ArrayList<Socket>());
+    ServerSocket ss = null;
+    if (loopback) {
+      ss = new ServerSocket(port);
+      final ServerSocket listener = ss;
+      Thread t = TCPStart.newConnectionThread("loadgen-idle-sink", () -> {
+          try {
+            while (true) {
+              held.add(listener.accept());
+              accepted.incrementAndGet();
+            }
+          }
+          catch (IOException e) {
+            // closed at exit
+          }
+        });
+      t.setDaemon(true);
+      t.start();
+      host = "localhost";
+    }
+    long before = usedHeap();
+    for (int i=0; i<n; i++) {
+      try {
+        held.add(new Socket(host, port));
+        handshakes.incrementAndGet();
+      }
+      catch (IOException e) {
+        failures.incrementAndGet();
+      }
+    }
+    long wait = System.currentTimeMillis() + GRACE_MS;
+    while (loopback && accepted.get() < handshakes.get() &&
+           System.currentTimeMillis() < wait)
+      Thread.sleep(10);
+    long after = usedHeap();
+    java.lang.ref.Reference.reachabilityFence(held);
+    return after-before;
+  }
+
+  // the heap in use, after letting the collector run
+  private static long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    for (int i=0; i<4; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+
+  // accepts connections forever, draining each one on its own thread.
+  private static void runSink(ServerSocket ss) {
+    while (true) {
+      final Socket s;
+      try {
+        s = ss.accept();
+      }
+      catch (IOException e) {
+        System.err.println("loadgen: accept failed: "+e);
+        return;
+      }
+      accepted.incrementAndGet();
+      Thread t = TCPStart.newConnectionThread("loadgen-sink-conn",
+                                              () -> drain(s));
+      t.start();
+    }
+  }
+
+  private static void drain(Socket s) {
+    byte[] buf = new byte[BULK_CHUNK];
+    try {
+      InputStream in = s.getInputStream();
+      int n;
+      while ((n = in.read(buf)) >= 0)
+        bytesReceived.addAndGet(n);
+    }
+    catch (Exception e) {
+      // peer went away, or the stack has no data path: just close.
+    }
+    try {
+      s.close();
+    }
+    catch (IOException e) {
+    }
+  }
+
+
+  // writes the results of a run as one line of JSON.
+  private static void report(String mode, int concurrency, int seconds,
+                             boolean loopback, long[] lat)
+    throws IOException {
+
+    Arrays.sort(lat);
+    TCPWrapper W = TCPStart.stack.wrapper;
+    long sent = W.packetCounter - W.droppedCounter;
+    double retransmitRatio = W.packetCounter==0 ? 0.0
+      : (double) W.retransmittedCounter / W.packetCounter;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"tool\":\"loadgen\"");
+    field(sb, "mode", mode);
+    sb.append(",\"timestamp\":").append(System.currentTimeMillis());
+    sb.append(",\"concurrency\":").append(concurrency);
+    sb.append(",\"duration_s\":").append(seconds);
+    sb.append(",\"loopback\":").append(loopback);
+    sb.append(",\"loss_rate\":").append(W.rateToDrop);
+    sb.append(",\"packet_rate\":").append(W.getPacketRate());
+    sb.append(",\"handshakes\":").append(handshakes.get());
+    sb.append(",\"failures\":").append(failures.get());
+    if (loopback)
+      sb.append(",\"sink_accepted\":").append(accepted.get());
+    if (mode.equals("rate"))
+      sb.append(",\"handshakes_per_sec\":")
+        .append(fmt((double) handshakes.get() / seconds));
+    sb.append(",\"connect_ms\":{");
+    sb.append("\"p50\":").append(fmt(pct(lat, 0.50)));
+    sb.append(",\"p90\":").append(fmt(pct(lat, 0.90)));
+    sb.append(",\"p99\":").append(fmt(pct(lat, 0.99)));
+    sb.append(",\"max\":").append(fmt(pct(lat, 1.00)));
+    sb.append("}");
+    if (mode.equals("bulk")) {
+      // goodput is what the peer actually read when we can see it,
+      // otherwise what the application handed to the stack.
+      long good = loopback ? bytesReceived.get() : bytesWritten.get();
+      sb.append(",\"bytes_written\":").append(bytesWritten.get());
+      if (loopback)
+        sb.append(",\"bytes_received\":").append(bytesReceived.get());
+      sb.append(",\"goodput_bps\":").append(fmt(good*8.0 / seconds));
+    }
+    sb.append(",\"packets_sent\":").append(sent);
+    sb.append(",\"packets_dropped\":").append(W.droppedCounter);
+    sb.append(",\"retransmits\":").append(W.retransmittedCounter);
+    sb.append(",\"retransmit_ratio\":").append(fmt(retransmitRatio));
+    // the stack's own histograms (TCPStack.latencies()), which also
+    // cover the sink side of a loopback run
+    sb.append(",\"stack_latency\":[")
+      .append(TCPStart.stack.latencies(false).trim().replace('\n', ','))
+      .append("]");
+    sb.append("}");
+    emit(sb);
+  }
+
+  private static void emit(StringBuilder sb) throws IOException {
+    String out = System.getProperty(OUTRESOURCE);
+    if (out!=null) {
+      try (PrintStream ps = new PrintStream(new FileOutputStream(out, true))) {
+        ps.println(sb);
+      }
+    }
+    else
+      results.println(sb);
+  }
+
+  // writes the result of an idle run as one line of JSON.
+  private static void reportIdle(int concurrency, boolean loopback,
+                                 long heapGrowth)
+    throws IOException {
+    long ends = handshakes.get() + (loopback ? accepted.get() : 0);
+    long perConnection = ends==0 ? 0 : heapGrowth / ends;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"tool\":\"loadgen\"");
+    field(sb, "mode", "idle");
+    sb.append(",\"timestamp\":").append(System.currentTimeMillis());
+    sb.append(",\"concurrency\":").append(concurrency);
+    sb.append(",\"loopback\":").append(loopback);
+    sb.append(",\"handshakes\":").append(handshakes.get());
+    sb.append(",\"failures\":").append(failures.get());
+    if (loopback)
+      sb.append(",\"sink_accepted\":").append(accepted.get());
+    sb.append(",\"heap_growth_bytes\":").append(heapGrowth);
+    sb.append(",\"bytes_per_idle_connection\":").append(perConnection);
+    sb.append(",\"idle_target_bytes\":").append(IDLE_TARGET_BYTES);
+    sb.append(",\"within_target\":").append(perConnection<=IDLE_TARGET_BYTES);
+    sb.append("}");
+    emit(sb);
+  }
+
+  // percentile of sorted nanosecond samples, in milliseconds
+  private static double pct(long[] sorted, double p) {
+    if (sorted.length==0)
+      return 0.0;
+    int i = (int) Math.ceil(p*sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(i, sorted.length-1))] / 1e6;
+  }
+
+  private static String fmt(double d) {
+    return String.format(Locale.ROOT, "%.3f", d);
+  }
+
+  private static void field(StringBuilder sb, String name, String value) {
+    sb.append(",\"").append(name).append("\":\"").append(value).append("\"");
+  }
+}
@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+//---------------------------------------------------
+//
+// class tcpreplay
+//
+// replays a recording made with -DCAPTURE=<file> (see TCPCapture) into
+// a fresh stack and checks what the stack sends against what the
+// recorded one sent, so a change to the state machine or the
+// Demultiplexer can be run against real traffic without the peers
+// that made it.
+//
+//   java -DUDPPORT=<port> tcpreplay <capture file> [timed|fast]
+//
+// UDPPORT, ROUTES, MSS, RCVBUF and SNDBUF must be what the recorded
+// program ran with. the replayed stack opens no socket: the recorded datagrams
+// are handed to its Demultiplexer, and what it sends is recorded and
+// neither rate limited nor sent.
+//
+// the application is a sink, as in loadgen: a server on every port a
+// recorded SYN went to, reading each connection to its end and then
+// closing it. a recording of a sink (loadgen sink, say) replays
+// exactly; one of a server that wrote back has every segment after its
+// first write reported as different.
+//
+//   timed  each datagram is handed over at its recorded time.
+//   fast   (default) as fast as possible, except that a datagram is
+//          held back, for at most -DREPLAY_WAIT milliseconds (1000),
+//          until the stack has sent as much as the recorded one had
+//          sent by then. that keeps causality (a FIN the application
+//          sends before the peer's ACK of it comes in) without the
+//          recorded pauses.
+//
+// the segments sent on each connection are compared in order: flags,
+// sequence and acknowledgment numbers, length and data. the window and
+// the options follow timing (the window is the room left after the
+// application's last read, the timestamps the clock) and are only
+// compared with -DREPLAY_STRICT=true, timestamps never. nor is the
+// order of segments of different connections, which depends on
+// threads.
+//
+// the result is one line of JSON on stdout, as with loadgen; the exit
+// status is 1 if anything differed.
+//
+//---------------------------------------------------
+public class tcpreplay {
+
+  public final static String WAITRESOURCE = "REPLAY_WAIT";
+  public final static String STRICTRESOURCE = "REPLAY_STRICT";
+
+  // differences printed in full (all are counted)
+  private final static int MAX_SHOWN = 10;
+
+  // one recorded datagram
+  private static class Rec {
+    final boolean inbound;
+    final long time;
+    final InetAddress addr;
+    final int port;
+    final byte[] data;
+    int sentBefore; // inbound: outbound records before it
+
+    Rec(TCPCapture.Record r) {
+      inbound = r.inbound();
+      time = r.time;
+      addr = r.addr;
+      port = r.port;
+      data = Arrays.copyOf(r.data, r.length);
+    }
+  }
+
+  public static void main(String[] argv) throws Exception {
+    if (argv.length < 1) {
+      System.err.println("usage: tcpreplay <capture file> [timed|fast]");
+      System.exit(1);
+    }
+    boolean timed = argv.length > 1 && argv[1].equals("timed");
+    long wait = Long.getLong(WAITRESOURCE, 1000);
+    boolean strict = Boolean.getBoolean(STRICTRESOURCE);
+
+    ArrayList<Rec> recs = load(argv[0]);
+    ArrayList<Rec> golden = new ArrayList<Rec>();
+    for (Rec r : recs)
+      if (r.inbound)
+        r.sentBefore = golden.size();
+      else
+        golden.add(r);
+
+    TCPStack S = stack();
+    ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+    S.startCapture(new TCPCapture(replayed));
+    for (int port : serverPorts(recs))
+      sink(S.serverSocket(port));
+
+    // hand every inbound datagram to the Demultiplexer
+    DatagramPacket p = new DatagramPacket(new byte[0], 0);
+    TCPPacket packet = new TCPPacket();
+    long start = System.nanoTime();
+    int inbound = 0;
+    for (Rec r : recs) {
+      if (!r.inbound)
+        continue;
+      if (timed) {
+        long due = start + r.time * 1000 - System.nanoTime();
+        if (due > 0)
+          Thread.sleep(due / 1000000, (int) (due % 1000000));
+      } else
+        awaitSent(S, r.sentBefore, wait);
+      p.setData(r.data, 0, r.data.length);
+      p.setAddress(r.addr);
+      p.setPort(r.port);
+      S.demux.deliver(p, packet);
+      inbound++;
+    }
+    // and let the stack finish answering
+    awaitSent(S, golden.size(), wait);
+    long elapsed = (System.nanoTime() - start) / 1000000;
+    S.stopCapture();
+
+    ArrayList<Rec> out = new ArrayList<Rec>();
+    for (Rec r : load(new ByteArrayInputStream(replayed.toByteArray())))
+      if (!r.inbound)
+        out.add(r);
+
+    int[] diff = compare(golden, out, strict);
+    long recorded = recs.isEmpty() ? 0 : recs.get(recs.size() - 1).time / 1000;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"tool\":\"tcpreplay\"");
+    sb.append(",\"mode\":\"").append(timed ? "timed" : "fast").append('"');
+    sb.append(",\"strict\":").append(strict);
+    sb.append(",\"inbound\":").append(inbound);
+    sb.append(",\"golden_out\":").append(golden.size());
+    sb.append(",\"replayed_out\":").append(out.size());
+    sb.append(",\"flows\":").append(diff[0]);
+    sb.append(",\"matched\":").append(diff[1]);
+    sb.append(",\"mismatched\":").append(diff[2]);
+    sb.append(",\"missing\":").append(diff[3]);
+    sb.append(",\"extra\":").append(diff[4]);
+    sb.append(",\"recorded_ms\":").append(recorded);
+    sb.append(",\"elapsed_ms\":").append(elapsed);
+    sb.append("}");
+    System.out.println(sb);
+    System.exit(diff[2] + diff[3] + diff[4] == 0 ? 0 : 1);
+  }
+
+
+  // a stack set up like the recorded one, that sends nothing
+  private static TCPStack stack() {
+    int udp = Integer.getInteger(TCPStart.PORTRESOURCE, 0);
+    if (udp == 0)
+      System.err.println("tcpreplay: no UDPPORT given, passive replies will all differ");
+    TCPStack S = new TCPStack(udp);
+    S.wrapper.transmit = false;
+    S.tracePackets = Boolean.getBoolean(TCPStart.TRACEPACKETSRESOURCE);
+    S.traceStates = Boolean.getBoolean(TCPStart.TRACESTATESRESOURCE);
+    if (System.getProperty(TCPStart.ROUTESRESOURCE) != null &&
+        !S.routes.parse(System.getProperty(TCPStart.ROUTESRESOURCE)))
+      System.exit(1);
+    if (System.getProperty(TCPStart.MSSRESOURCE) != null)
+      S.setMss(Integer.getInteger(TCPStart.MSSRESOURCE));
+    if (System.getProperty(TCPStart.RCVBUFRESOURCE) != null)
+      S.recvBufferSize = Integer.getInteger(TCPStart.RCVBUFRESOURCE);
+    if (System.getProperty(TCPStart.SNDBUFRESOURCE) != null)
+      S.sendBufferSize = Integer.getInteger(TCPStart.SNDBUFRESOURCE);
+    return S;
+  }
+
+  private static ArrayList<Rec> load(String file) throws IOException {
+    return load(new FileInputStream(file));
+  }
+
+  private static ArrayList<Rec> load(InputStream in) throws IOException {
+    ArrayList<Rec> recs = new ArrayList<Rec>();
+    try (TCPCapture.Reader r = new TCPCapture.Reader(in)) {
+      TCPCapture.Record rec;
+      while ((rec = r.next()) != null)
+        recs.add(new Rec(rec));
+    }
+    return recs;
+  }
+
+  // the ports recorded SYNs (without ACK) went to
+  private static TreeSet<Integer> serverPorts(ArrayList<Rec> recs) {
+    TreeSet<Integer> ports = new TreeSet<Integer>();
+    TCPPacket p = new TCPPacket();
+    for (Rec r : recs) {
+      if (!r.inbound || !TCPPacket.fits(r.data, 0, r.data.length))
+        continue;
+      p.parse(r.data, 0, r.data.length, r.addr);
+      if (p.synFlag && !p.ackFlag)
+        ports.add(p.destPort);
+    }
+    return ports;
+  }
+
+  // accepts on ss forever, reading each connection to its end and then
+  // closing it
+  private static void sink(final ServerSocket ss) {
+    Thread t = new Thread(() -> {
+        while (true) {
+          final Socket s;
+          try {
+            s = ss.accept();
+          } catch (IOException e) {
+            return;
+          }
+          Thread d = new Thread(() -> {
+              byte[] buf = new byte[4096];
+              try {
+                InputStream in = s.getInputStream();
+                while (in.read(buf) >= 0)
+                  ;
+              } catch (IOException e) {
+                // reset: just close
+              }
+              try {
+                s.close();
+              } catch (IOException e) {
+              }
+            }, "tcpreplay-sink-conn");
+          d.setDaemon(true);
+          d.start();
+        }
+      }, "tcpreplay-sink");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // waits, for at most wait milliseconds, until the stack has sent n
+  // packets
+  private static void awaitSent(TCPStack S, int n, long wait) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + wait;
+    while (S.wrapper.packetCounter < n && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+  }
+
+
+  // compares the segments sent on each connection and returns the
+  // number of connections, then of segments that matched, differed,
+  // were recorded but not sent, and were sent but not recorded
+  private static int[] compare(ArrayList<Rec> golden, ArrayList<Rec> out, boolean strict) {
+    LinkedHashMap<String, ArrayList<String>> want = flows(golden, strict);
+    LinkedHashMap<String, ArrayList<String>> got = flows(out, strict);
+    TreeSet<String> keys = new TreeSet<String>(want.keySet());
+    keys.addAll(got.keySet());
+    int[] diff = new int[5];
+    diff[0] = keys.size();
+    int shown = 0;
+    for (String k : keys) {
+      ArrayList<String> w = want.getOrDefault(k, new ArrayList<String>());
+      ArrayList<String> g = got.getOrDefault(k, new ArrayList<String>());
+      for (int i = 0; i < Math.max(w.size(), g.size()); i++) {
+        String a = i < w.size() ? w.get(i) : null;
+        String b = i < g.size() ? g.get(i) : null;
+        int kind = a == null ? 4 : b == null ? 3 : a.equals(b) ? 1 : 2;
+        diff[kind]++;
+        if (kind != 1 && shown++ < MAX_SHOWN)
+          System.err.println("tcpreplay: " + k + " #" + i + "\n  recorded " + a + "\n  replayed " + b);
+      }
+    }
+    return diff;
+  }
+
+  // every segment in recs, as text to compare, by connection
+  private static LinkedHashMap<String, ArrayList<String>> flows(ArrayList<Rec> recs, boolean strict) {
+    LinkedHashMap<String, ArrayList<String>> flows = new LinkedHashMap<String, ArrayList<String>>();
+    TCPPacket p = new TCPPacket();
+    CRC32 crc = new CRC32();
+    for (Rec r : recs) {
+      p.parse(r.data, 0, r.data.length, r.addr);
+      String key = r.addr.getHostAddress() + ":" + r.port + " " + p.sourcePort + ">" + p.destPort;
+      StringBuilder b = new StringBuilder();
+      b.append(p.synFlag ? 'S' : '.').append(p.ackFlag ? 'A' : '.')
+        .append(p.finFlag ? 'F' : '.').append(p.rstFlag ? 'R' : '.');
+      b.append(" seq=").append(p.seqNum).append(" ack=").append(p.ackNum);
+      b.append(" len=").append(p.dataLength);
+      if (p.dataLength > 0) {
+        crc.reset();
+        crc.update(p.data, p.dataOffset, p.dataLength);
+        b.append(" crc=").append(Long.toHexString(crc.getValue()));
+      }
+      if (strict) {
+        b.append(" wnd=").append(p.windowSize).append(" mss=").append(p.mss)
+          .append(" wscale=").append(p.windowScale).append(" sackok=").append(p.sackPermitted);
+        for (int i = 0; i < p.sackCount; i++)
+          b.append(" sack=").append(p.sackBlocks[2 * i]).append('-').append(p.sackBlocks[2 * i + 1]);
+      }
+      flows.computeIfAbsent(key, x -> new ArrayList<String>()).add(b.toString());
+    }
+    return flows;
+  }
+}